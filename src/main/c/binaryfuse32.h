@@ -0,0 +1,240 @@
+#ifndef BINARYFUSE32_H
+#define BINARYFUSE32_H
+#include <stdbool.h>
+#include <stdint.h>
+#include <stdlib.h>
+#include <string.h>
+#include "binaryfusefilter.h"
+
+// Binary fuse filter with 32-bit fingerprints: about 36 bits per key for a false
+// positive rate of 2^-32. The layout, hashing and serialized format are those of
+// binary_fuse16_t in binaryfusefilter.h with wider fingerprints. Construction is
+// binary_fuse32_populate_context in xfuse_build.h.
+
+typedef struct binary_fuse32_s {
+  uint64_t Seed;
+  uint32_t Size;
+  uint32_t SegmentLength;
+  uint32_t SegmentLengthMask;
+  uint32_t SegmentCount;
+  uint32_t SegmentCountLength;
+  uint32_t ArrayLength;
+  uint32_t *Fingerprints;
+} binary_fuse32_t;
+
+static inline uint32_t binary_fuse32_fingerprint(uint64_t hash) {
+  return (uint32_t)(hash ^ (hash >> 32U));
+}
+
+static inline binary_hashes_t binary_fuse32_hash_batch(uint64_t hash,
+                                        const binary_fuse32_t *filter) {
+  uint64_t hi = binary_fuse_mulhi(hash, filter->SegmentCountLength);
+  binary_hashes_t ans;
+  ans.h0 = (uint32_t)hi;
+  ans.h1 = ans.h0 + filter->SegmentLength;
+  ans.h2 = ans.h1 + filter->SegmentLength;
+  ans.h1 ^= (uint32_t)(hash >> 18U) & filter->SegmentLengthMask;
+  ans.h2 ^= (uint32_t)(hash)&filter->SegmentLengthMask;
+  return ans;
+}
+
+// Report if the key is in the set, with false positive rate.
+static inline bool binary_fuse32_contain(uint64_t key,
+                                        const binary_fuse32_t *filter) {
+  uint64_t hash = binary_fuse_mix_split(key, filter->Seed);
+  uint32_t f = binary_fuse32_fingerprint(hash);
+  binary_hashes_t hashes = binary_fuse32_hash_batch(hash, filter);
+  f ^= filter->Fingerprints[hashes.h0] ^
+       filter->Fingerprints[hashes.h1] ^
+       filter->Fingerprints[hashes.h2];
+  return f == 0;
+}
+
+// allocate enough capacity for a set containing up to 'size' elements
+// caller is responsible to call binary_fuse32_free(filter)
+static inline bool binary_fuse32_allocate(uint32_t size,
+                                         binary_fuse32_t *filter) {
+  uint32_t arity = 3;
+  filter->Seed = 0;
+  filter->Size = size;
+  filter->SegmentLength = size == 0 ? 4 : binary_fuse_calculate_segment_length(arity, size);
+  if (filter->SegmentLength > 262144) {
+    filter->SegmentLength = 262144;
+  }
+  filter->SegmentLengthMask = filter->SegmentLength - 1;
+  double sizeFactor = size <= 1 ? 0 : binary_fuse_calculate_size_factor(arity, size);
+  uint32_t capacity = size <= 1 ? 0 : (uint32_t)(round((double)size * sizeFactor));
+  uint32_t initSegmentCount =
+      (capacity + filter->SegmentLength - 1) / filter->SegmentLength -
+      (arity - 1);
+  filter->ArrayLength = (initSegmentCount + arity - 1) * filter->SegmentLength;
+  filter->SegmentCount =
+      (filter->ArrayLength + filter->SegmentLength - 1) / filter->SegmentLength;
+  if (filter->SegmentCount <= arity - 1) {
+    filter->SegmentCount = 1;
+  } else {
+    filter->SegmentCount = filter->SegmentCount - (arity - 1);
+  }
+  filter->ArrayLength =
+      (filter->SegmentCount + arity - 1) * filter->SegmentLength;
+  filter->SegmentCountLength = filter->SegmentCount * filter->SegmentLength;
+  filter->Fingerprints =
+      (uint32_t *)calloc(filter->ArrayLength, sizeof(uint32_t));
+  return filter->Fingerprints != NULL;
+}
+
+// report memory usage
+static inline size_t binary_fuse32_size_in_bytes(const binary_fuse32_t *filter) {
+  return filter->ArrayLength * sizeof(uint32_t) + sizeof(binary_fuse32_t);
+}
+
+// release memory
+static inline void binary_fuse32_free(binary_fuse32_t *filter) {
+  free(filter->Fingerprints);
+  filter->Fingerprints = NULL;
+  filter->Seed = 0;
+  filter->Size = 0;
+  filter->SegmentLength = 0;
+  filter->SegmentLengthMask = 0;
+  filter->SegmentCount = 0;
+  filter->SegmentCountLength = 0;
+  filter->ArrayLength = 0;
+}
+
+// number of bytes written by binary_fuse32_serialize
+static inline size_t binary_fuse32_serialization_bytes(const binary_fuse32_t *filter) {
+  return sizeof(filter->Seed) + sizeof(filter->Size) + sizeof(filter->SegmentLength) +
+         sizeof(filter->SegmentCount) + sizeof(filter->SegmentCountLength) +
+         sizeof(filter->ArrayLength) + sizeof(uint32_t) * filter->ArrayLength;
+}
+
+// serialize a filter to a buffer, the buffer should have a capacity of at least
+// binary_fuse32_serialization_bytes(filter) bytes. Native endianess only.
+static inline void binary_fuse32_serialize(const binary_fuse32_t *filter, char *buffer) {
+  memcpy(buffer, &filter->Seed, sizeof(filter->Seed));
+  buffer += sizeof(filter->Seed);
+  memcpy(buffer, &filter->Size, sizeof(filter->Size));
+  buffer += sizeof(filter->Size);
+  memcpy(buffer, &filter->SegmentLength, sizeof(filter->SegmentLength));
+  buffer += sizeof(filter->SegmentLength);
+  memcpy(buffer, &filter->SegmentCount, sizeof(filter->SegmentCount));
+  buffer += sizeof(filter->SegmentCount);
+  memcpy(buffer, &filter->SegmentCountLength, sizeof(filter->SegmentCountLength));
+  buffer += sizeof(filter->SegmentCountLength);
+  memcpy(buffer, &filter->ArrayLength, sizeof(filter->ArrayLength));
+  buffer += sizeof(filter->ArrayLength);
+  memcpy(buffer, filter->Fingerprints, filter->ArrayLength * sizeof(uint32_t));
+}
+
+// deserialize the struct fields, returns the position of the fingerprints in the
+// buffer. Nothing is allocated. Native endianess only.
+static inline const char *binary_fuse32_deserialize_header(binary_fuse32_t *filter, const char *buffer) {
+  memcpy(&filter->Seed, buffer, sizeof(filter->Seed));
+  buffer += sizeof(filter->Seed);
+  memcpy(&filter->Size, buffer, sizeof(filter->Size));
+  buffer += sizeof(filter->Size);
+  memcpy(&filter->SegmentLength, buffer, sizeof(filter->SegmentLength));
+  buffer += sizeof(filter->SegmentLength);
+  filter->SegmentLengthMask = filter->SegmentLength - 1;
+  memcpy(&filter->SegmentCount, buffer, sizeof(filter->SegmentCount));
+  buffer += sizeof(filter->SegmentCount);
+  memcpy(&filter->SegmentCountLength, buffer, sizeof(filter->SegmentCountLength));
+  buffer += sizeof(filter->SegmentCountLength);
+  memcpy(&filter->ArrayLength, buffer, sizeof(filter->ArrayLength));
+  buffer += sizeof(filter->ArrayLength);
+  return buffer;
+}
+
+// deserialize a filter from a buffer, returns true on success, false on failure.
+// The caller needs to call binary_fuse32_free(filter) after. Native endianess only.
+static inline bool binary_fuse32_deserialize(binary_fuse32_t *filter, const char *buffer) {
+  const char *fingerprints = binary_fuse32_deserialize_header(filter, buffer);
+  filter->Fingerprints = (uint32_t *)malloc(filter->ArrayLength * sizeof(uint32_t));
+  if (filter->Fingerprints == NULL) {
+    return false;
+  }
+  memcpy(filter->Fingerprints, fingerprints, filter->ArrayLength * sizeof(uint32_t));
+  return true;
+}
+
+// Packed format, as binary_fuse16_pack: seed, size, a bitmap of the non-zero
+// fingerprints, then those fingerprints.
+
+static inline size_t binary_fuse32_pack_bytes(const binary_fuse32_t *filter) {
+  size_t sz = sizeof(filter->Seed) + sizeof(filter->Size) + ((size_t)filter->ArrayLength + 7) / 8;
+  for (size_t i = 0; i < filter->ArrayLength; i++) {
+    if (filter->Fingerprints[i] != 0) {
+      sz += sizeof(uint32_t);
+    }
+  }
+  return sz;
+}
+
+// serialize as packed format, return size used or 0 for insufficient space
+static inline size_t binary_fuse32_pack(const binary_fuse32_t *filter, char *buffer, size_t space) {
+  size_t bitmapBytes = ((size_t)filter->ArrayLength + 7) / 8;
+  size_t header = sizeof(filter->Seed) + sizeof(filter->Size);
+  if (space < header + bitmapBytes) {
+    return 0;
+  }
+  char *start = buffer;
+  char *end = buffer + space;
+  memcpy(buffer, &filter->Seed, sizeof(filter->Seed));
+  buffer += sizeof(filter->Seed);
+  memcpy(buffer, &filter->Size, sizeof(filter->Size));
+  buffer += sizeof(filter->Size);
+  uint8_t *bitmap = (uint8_t *)buffer;
+  memset(bitmap, 0, bitmapBytes);
+  buffer += bitmapBytes;
+  for (size_t i = 0; i < filter->ArrayLength; i++) {
+    if (filter->Fingerprints[i] == 0) {
+      continue;
+    }
+    if ((size_t)(end - buffer) < sizeof(uint32_t)) {
+      return 0;
+    }
+    bitmap[i / 8] |= (uint8_t)(1U << (i % 8));
+    memcpy(buffer, &filter->Fingerprints[i], sizeof(uint32_t));
+    buffer += sizeof(uint32_t);
+  }
+  return (size_t)(buffer - start);
+}
+
+// deserialize the packed format, returns false on truncated input or allocation
+// failure. The caller needs to call binary_fuse32_free(filter) after.
+static inline bool binary_fuse32_unpack(binary_fuse32_t *filter, const char *buffer, size_t len) {
+  const char *end = buffer + len;
+  uint64_t seed;
+  uint32_t size;
+  memset(filter, 0, sizeof(*filter));
+  if (len < sizeof(seed) + sizeof(size)) {
+    return false;
+  }
+  memcpy(&seed, buffer, sizeof(seed));
+  buffer += sizeof(seed);
+  memcpy(&size, buffer, sizeof(size));
+  buffer += sizeof(size);
+  if (!binary_fuse32_allocate(size, filter)) {
+    return false;
+  }
+  filter->Seed = seed;
+  size_t bitmapBytes = ((size_t)filter->ArrayLength + 7) / 8;
+  if ((size_t)(end - buffer) < bitmapBytes) {
+    return false;
+  }
+  const uint8_t *bitmap = (const uint8_t *)buffer;
+  buffer += bitmapBytes;
+  for (size_t i = 0; i < filter->ArrayLength; i++) {
+    if ((bitmap[i / 8] & (1U << (i % 8))) == 0) {
+      continue;
+    }
+    if ((size_t)(end - buffer) < sizeof(uint32_t)) {
+      return false;
+    }
+    memcpy(&filter->Fingerprints[i], buffer, sizeof(uint32_t));
+    buffer += sizeof(uint32_t);
+  }
+  return true;
+}
+
+#endif
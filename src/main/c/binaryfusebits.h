@@ -0,0 +1,355 @@
+#ifndef BINARYFUSEBITS_H
+#define BINARYFUSEBITS_H
+#include <stdbool.h>
+#include <stdint.h>
+#include <stdlib.h>
+#include <string.h>
+#include "binaryfusefilter.h"
+
+// Binary fuse filter with fingerprints of any width from 1 to 32 bits, stored
+// bit-packed: slot i occupies bits [i * Bits, (i + 1) * Bits) of the fingerprint
+// array, least significant bit first. A slot is read with one unaligned 64-bit
+// load at byte (i * Bits) / 8 followed by a shift and a mask, so the array is
+// padded with BINARY_FUSE_BITS_PADDING bytes for the loads of the last slots.
+// The false positive rate is 2^-Bits: 12 bits give 0.024% for about 13.5 bits
+// per key. The geometry and hashing are those of binary_fuse8_t. Construction is
+// binary_fuse_bits_populate_context in xfuse_build.h.
+
+#define BINARY_FUSE_BITS_PADDING 7
+
+typedef struct binary_fuse_bits_s {
+  uint64_t Seed;
+  uint32_t Size;
+  uint32_t SegmentLength;
+  uint32_t SegmentLengthMask;
+  uint32_t SegmentCount;
+  uint32_t SegmentCountLength;
+  uint32_t ArrayLength;
+  uint32_t Bits;
+  uint32_t Mask;
+  uint8_t *Fingerprints;
+} binary_fuse_bits_t;
+
+// bytes of the fingerprint array, padding included
+static inline size_t binary_fuse_bits_array_bytes(uint32_t arrayLength, uint32_t bits) {
+  return (size_t)(((uint64_t)arrayLength * bits + 7) / 8) + BINARY_FUSE_BITS_PADDING;
+}
+
+static inline uint64_t binary_fuse_bits_load(const uint8_t *p) {
+  uint64_t word;
+  memcpy(&word, p, sizeof(word));
+#if defined(__BYTE_ORDER__) && __BYTE_ORDER__ == __ORDER_BIG_ENDIAN__
+  word = __builtin_bswap64(word);
+#endif
+  return word;
+}
+
+static inline void binary_fuse_bits_store(uint8_t *p, uint64_t word) {
+#if defined(__BYTE_ORDER__) && __BYTE_ORDER__ == __ORDER_BIG_ENDIAN__
+  word = __builtin_bswap64(word);
+#endif
+  memcpy(p, &word, sizeof(word));
+}
+
+static inline uint32_t binary_fuse_bits_get(const binary_fuse_bits_t *filter, uint32_t index) {
+  uint64_t bit = (uint64_t)index * filter->Bits;
+  return (uint32_t)(binary_fuse_bits_load(filter->Fingerprints + (bit >> 3)) >> (bit & 7)) & filter->Mask;
+}
+
+static inline void binary_fuse_bits_set(binary_fuse_bits_t *filter, uint32_t index, uint32_t value) {
+  uint64_t bit = (uint64_t)index * filter->Bits;
+  uint8_t *p = filter->Fingerprints + (bit >> 3);
+  uint64_t word = binary_fuse_bits_load(p);
+  word &= ~((uint64_t)filter->Mask << (bit & 7));
+  word |= (uint64_t)(value & filter->Mask) << (bit & 7);
+  binary_fuse_bits_store(p, word);
+}
+
+// the fingerprint of the binary_fuse32 filters, to be masked to the width
+static inline uint32_t binary_fuse_bits_fingerprint(uint64_t hash) {
+  return (uint32_t)(hash ^ (hash >> 32U));
+}
+
+static inline binary_hashes_t binary_fuse_bits_hash_batch(uint64_t hash,
+                                        const binary_fuse_bits_t *filter) {
+  uint64_t hi = binary_fuse_mulhi(hash, filter->SegmentCountLength);
+  binary_hashes_t ans;
+  ans.h0 = (uint32_t)hi;
+  ans.h1 = ans.h0 + filter->SegmentLength;
+  ans.h2 = ans.h1 + filter->SegmentLength;
+  ans.h1 ^= (uint32_t)(hash >> 18U) & filter->SegmentLengthMask;
+  ans.h2 ^= (uint32_t)(hash)&filter->SegmentLengthMask;
+  return ans;
+}
+
+// The fingerprint of the key XOR its three slots, masked to the width: zero for
+// the keys of a filter, the value of the key when the slots were populated with
+// binary_fuse_bits_populate_values_context (xfuse_build.h).
+static inline uint32_t binary_fuse_bits_retrieve(uint64_t key,
+                                                 const binary_fuse_bits_t *filter) {
+  uint64_t hash = binary_fuse_mix_split(key, filter->Seed);
+  uint32_t f = binary_fuse_bits_fingerprint(hash);
+  binary_hashes_t hashes = binary_fuse_bits_hash_batch(hash, filter);
+  f ^= binary_fuse_bits_get(filter, hashes.h0) ^
+       binary_fuse_bits_get(filter, hashes.h1) ^
+       binary_fuse_bits_get(filter, hashes.h2);
+  return f & filter->Mask;
+}
+
+// Report if the key is in the set, with false positive rate.
+static inline bool binary_fuse_bits_contain(uint64_t key,
+                                            const binary_fuse_bits_t *filter) {
+  return binary_fuse_bits_retrieve(key, filter) == 0;
+}
+
+// Sets the fields of a filter for 'size' elements and 'bits'-bit fingerprints,
+// without allocating the fingerprints.
+static inline bool binary_fuse_bits_init(uint32_t size, uint32_t bits,
+                                         binary_fuse_bits_t *filter) {
+  if (bits == 0 || bits > 32) {
+    return false;
+  }
+  uint32_t arity = 3;
+  filter->Seed = 0;
+  filter->Size = size;
+  filter->Bits = bits;
+  filter->Mask = bits == 32 ? UINT32_MAX : (UINT32_C(1) << bits) - 1;
+  filter->SegmentLength = size == 0 ? 4 : binary_fuse_calculate_segment_length(arity, size);
+  if (filter->SegmentLength > 262144) {
+    filter->SegmentLength = 262144;
+  }
+  filter->SegmentLengthMask = filter->SegmentLength - 1;
+  double sizeFactor = size <= 1 ? 0 : binary_fuse_calculate_size_factor(arity, size);
+  uint32_t capacity = size <= 1 ? 0 : (uint32_t)(round((double)size * sizeFactor));
+  uint32_t initSegmentCount =
+      (capacity + filter->SegmentLength - 1) / filter->SegmentLength -
+      (arity - 1);
+  filter->ArrayLength = (initSegmentCount + arity - 1) * filter->SegmentLength;
+  filter->SegmentCount =
+      (filter->ArrayLength + filter->SegmentLength - 1) / filter->SegmentLength;
+  if (filter->SegmentCount <= arity - 1) {
+    filter->SegmentCount = 1;
+  } else {
+    filter->SegmentCount = filter->SegmentCount - (arity - 1);
+  }
+  filter->ArrayLength =
+      (filter->SegmentCount + arity - 1) * filter->SegmentLength;
+  filter->SegmentCountLength = filter->SegmentCount * filter->SegmentLength;
+  filter->Fingerprints = NULL;
+  return true;
+}
+
+// allocate enough capacity for a set containing up to 'size' elements
+// caller is responsible to call binary_fuse_bits_free(filter)
+static inline bool binary_fuse_bits_allocate(uint32_t size, uint32_t bits,
+                                             binary_fuse_bits_t *filter) {
+  if (!binary_fuse_bits_init(size, bits, filter)) {
+    return false;
+  }
+  filter->Fingerprints =
+      (uint8_t *)calloc(binary_fuse_bits_array_bytes(filter->ArrayLength, bits), 1);
+  return filter->Fingerprints != NULL;
+}
+
+// report memory usage
+static inline size_t binary_fuse_bits_size_in_bytes(const binary_fuse_bits_t *filter) {
+  return binary_fuse_bits_array_bytes(filter->ArrayLength, filter->Bits) + sizeof(binary_fuse_bits_t);
+}
+
+// release memory
+static inline void binary_fuse_bits_free(binary_fuse_bits_t *filter) {
+  free(filter->Fingerprints);
+  filter->Fingerprints = NULL;
+  filter->Seed = 0;
+  filter->Size = 0;
+  filter->SegmentLength = 0;
+  filter->SegmentLengthMask = 0;
+  filter->SegmentCount = 0;
+  filter->SegmentCountLength = 0;
+  filter->ArrayLength = 0;
+  filter->Bits = 0;
+  filter->Mask = 0;
+}
+
+// number of bytes written by binary_fuse_bits_serialize
+static inline size_t binary_fuse_bits_serialization_bytes(const binary_fuse_bits_t *filter) {
+  return sizeof(filter->Seed) + sizeof(filter->Size) + sizeof(filter->SegmentLength) +
+         sizeof(filter->SegmentCount) + sizeof(filter->SegmentCountLength) +
+         sizeof(filter->ArrayLength) + sizeof(filter->Bits) +
+         binary_fuse_bits_array_bytes(filter->ArrayLength, filter->Bits);
+}
+
+// serialize a filter to a buffer, the buffer should have a capacity of at least
+// binary_fuse_bits_serialization_bytes(filter) bytes. The fingerprints are written
+// with their padding, so that a view over the buffer can be queried in place.
+// Native endianess only.
+static inline void binary_fuse_bits_serialize(const binary_fuse_bits_t *filter, char *buffer) {
+  memcpy(buffer, &filter->Seed, sizeof(filter->Seed));
+  buffer += sizeof(filter->Seed);
+  memcpy(buffer, &filter->Size, sizeof(filter->Size));
+  buffer += sizeof(filter->Size);
+  memcpy(buffer, &filter->SegmentLength, sizeof(filter->SegmentLength));
+  buffer += sizeof(filter->SegmentLength);
+  memcpy(buffer, &filter->SegmentCount, sizeof(filter->SegmentCount));
+  buffer += sizeof(filter->SegmentCount);
+  memcpy(buffer, &filter->SegmentCountLength, sizeof(filter->SegmentCountLength));
+  buffer += sizeof(filter->SegmentCountLength);
+  memcpy(buffer, &filter->ArrayLength, sizeof(filter->ArrayLength));
+  buffer += sizeof(filter->ArrayLength);
+  memcpy(buffer, &filter->Bits, sizeof(filter->Bits));
+  buffer += sizeof(filter->Bits);
+  memcpy(buffer, filter->Fingerprints, binary_fuse_bits_array_bytes(filter->ArrayLength, filter->Bits));
+}
+
+// deserialize the struct fields, returns the position of the fingerprints in the
+// buffer, or NULL if the width is invalid. Nothing is allocated. Native endianess only.
+static inline const char *binary_fuse_bits_deserialize_header(binary_fuse_bits_t *filter, const char *buffer) {
+  memcpy(&filter->Seed, buffer, sizeof(filter->Seed));
+  buffer += sizeof(filter->Seed);
+  memcpy(&filter->Size, buffer, sizeof(filter->Size));
+  buffer += sizeof(filter->Size);
+  memcpy(&filter->SegmentLength, buffer, sizeof(filter->SegmentLength));
+  buffer += sizeof(filter->SegmentLength);
+  filter->SegmentLengthMask = filter->SegmentLength - 1;
+  memcpy(&filter->SegmentCount, buffer, sizeof(filter->SegmentCount));
+  buffer += sizeof(filter->SegmentCount);
+  memcpy(&filter->SegmentCountLength, buffer, sizeof(filter->SegmentCountLength));
+  buffer += sizeof(filter->SegmentCountLength);
+  memcpy(&filter->ArrayLength, buffer, sizeof(filter->ArrayLength));
+  buffer += sizeof(filter->ArrayLength);
+  memcpy(&filter->Bits, buffer, sizeof(filter->Bits));
+  buffer += sizeof(filter->Bits);
+  filter->Fingerprints = NULL;
+  if (filter->Bits == 0 || filter->Bits > 32) {
+    return NULL;
+  }
+  filter->Mask = filter->Bits == 32 ? UINT32_MAX : (UINT32_C(1) << filter->Bits) - 1;
+  return buffer;
+}
+
+// deserialize a filter from a buffer, returns true on success, false on failure.
+// The caller needs to call binary_fuse_bits_free(filter) after. Native endianess only.
+static inline bool binary_fuse_bits_deserialize(binary_fuse_bits_t *filter, const char *buffer) {
+  const char *fingerprints = binary_fuse_bits_deserialize_header(filter, buffer);
+  if (fingerprints == NULL) {
+    return false;
+  }
+  size_t bytes = binary_fuse_bits_array_bytes(filter->ArrayLength, filter->Bits);
+  filter->Fingerprints = (uint8_t *)malloc(bytes);
+  if (filter->Fingerprints == NULL) {
+    return false;
+  }
+  memcpy(filter->Fingerprints, fingerprints, bytes);
+  return true;
+}
+
+// Packed format: seed, size, width, a bitmap of the non-zero fingerprints, then
+// those fingerprints, bit-packed back to back.
+
+// reads 'bits' bits at bit offset 'bit' of p, one byte at a time: p is not padded
+static inline uint32_t binary_fuse_bits_read_stream(const uint8_t *p, uint64_t bit, uint32_t bits) {
+  uint64_t value = 0;
+  uint32_t done = 0;
+  while (done < bits) {
+    uint32_t shift = (uint32_t)(bit & 7);
+    uint32_t take = 8 - shift < bits - done ? 8 - shift : bits - done;
+    value |= (uint64_t)((p[bit >> 3] >> shift) & ((1U << take) - 1)) << done;
+    done += take;
+    bit += take;
+  }
+  return (uint32_t)value;
+}
+
+// writes 'bits' bits at bit offset 'bit' of p, which must be zeroed
+static inline void binary_fuse_bits_write_stream(uint8_t *p, uint64_t bit, uint32_t bits, uint32_t value) {
+  uint32_t done = 0;
+  while (done < bits) {
+    uint32_t shift = (uint32_t)(bit & 7);
+    uint32_t take = 8 - shift < bits - done ? 8 - shift : bits - done;
+    p[bit >> 3] |= (uint8_t)(((value >> done) & ((1U << take) - 1)) << shift);
+    done += take;
+    bit += take;
+  }
+}
+
+static inline size_t binary_fuse_bits_pack_bytes(const binary_fuse_bits_t *filter) {
+  uint64_t nonzero = 0;
+  for (uint32_t i = 0; i < filter->ArrayLength; i++) {
+    if (binary_fuse_bits_get(filter, i) != 0) {
+      nonzero++;
+    }
+  }
+  return sizeof(filter->Seed) + sizeof(filter->Size) + sizeof(filter->Bits) +
+         ((size_t)filter->ArrayLength + 7) / 8 + (size_t)((nonzero * filter->Bits + 7) / 8);
+}
+
+// serialize as packed format, return size used or 0 for insufficient space
+static inline size_t binary_fuse_bits_pack(const binary_fuse_bits_t *filter, char *buffer, size_t space) {
+  size_t bitmapBytes = ((size_t)filter->ArrayLength + 7) / 8;
+  size_t header = sizeof(filter->Seed) + sizeof(filter->Size) + sizeof(filter->Bits);
+  if (space < header + bitmapBytes) {
+    return 0;
+  }
+  memcpy(buffer, &filter->Seed, sizeof(filter->Seed));
+  memcpy(buffer + sizeof(filter->Seed), &filter->Size, sizeof(filter->Size));
+  memcpy(buffer + sizeof(filter->Seed) + sizeof(filter->Size), &filter->Bits, sizeof(filter->Bits));
+  uint8_t *bitmap = (uint8_t *)buffer + header;
+  uint8_t *stream = bitmap + bitmapBytes;
+  size_t streamSpace = space - header - bitmapBytes;
+  memset(bitmap, 0, space - header);
+  uint64_t bit = 0;
+  for (uint32_t i = 0; i < filter->ArrayLength; i++) {
+    uint32_t f = binary_fuse_bits_get(filter, i);
+    if (f == 0) {
+      continue;
+    }
+    if ((bit + filter->Bits + 7) / 8 > streamSpace) {
+      return 0;
+    }
+    bitmap[i / 8] |= (uint8_t)(1U << (i % 8));
+    binary_fuse_bits_write_stream(stream, bit, filter->Bits, f);
+    bit += filter->Bits;
+  }
+  return header + bitmapBytes + (size_t)((bit + 7) / 8);
+}
+
+// deserialize the packed format, returns false on truncated input or allocation
+// failure. The caller needs to call binary_fuse_bits_free(filter) after.
+static inline bool binary_fuse_bits_unpack(binary_fuse_bits_t *filter, const char *buffer, size_t len) {
+  uint64_t seed;
+  uint32_t size;
+  uint32_t bits;
+  memset(filter, 0, sizeof(*filter));
+  size_t header = sizeof(seed) + sizeof(size) + sizeof(bits);
+  if (len < header) {
+    return false;
+  }
+  memcpy(&seed, buffer, sizeof(seed));
+  memcpy(&size, buffer + sizeof(seed), sizeof(size));
+  memcpy(&bits, buffer + sizeof(seed) + sizeof(size), sizeof(bits));
+  if (!binary_fuse_bits_allocate(size, bits, filter)) {
+    return false;
+  }
+  filter->Seed = seed;
+  size_t bitmapBytes = ((size_t)filter->ArrayLength + 7) / 8;
+  if (len - header < bitmapBytes) {
+    return false;
+  }
+  const uint8_t *bitmap = (const uint8_t *)buffer + header;
+  const uint8_t *stream = bitmap + bitmapBytes;
+  size_t streamBytes = len - header - bitmapBytes;
+  uint64_t bit = 0;
+  for (uint32_t i = 0; i < filter->ArrayLength; i++) {
+    if ((bitmap[i / 8] & (1U << (i % 8))) == 0) {
+      continue;
+    }
+    if ((bit + bits + 7) / 8 > streamBytes) {
+      return false;
+    }
+    binary_fuse_bits_set(filter, i, binary_fuse_bits_read_stream(stream, bit, bits));
+    bit += bits;
+  }
+  return true;
+}
+
+#endif
@@ -13,7 +13,10 @@
 #endif
 
 static int binary_fuse_cmpfunc(const void * a, const void * b) {
-  return (int)( *(const uint64_t*)a - *(const uint64_t*)b );
+  // the difference of two 64-bit keys does not fit in an int
+  uint64_t x = *(const uint64_t*)a;
+  uint64_t y = *(const uint64_t*)b;
+  return (x > y) - (x < y);
 }
 
 static size_t binary_fuse_sort_and_remove_dup(uint64_t* keys, size_t length) {
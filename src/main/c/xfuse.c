@@ -1,5 +1,32 @@
 #include "xorfilter.h"
 #include "binaryfusefilter.h"
+#include "binaryfuse32.h"
+#include "binaryfusebits.h"
+#include "xfuse_build.h"
+#if defined(__linux__)
+#include <stdio.h>
+#include <sys/mman.h>
+#endif
+
+// Which optimized build of this library the CPU can run: 2 for the AVX-512
+// build, 1 for the AVX2 build, 0 for the baseline only. The checks match the
+// -m flags of the variants in pom.xml.
+int xfuse_cpu_level(void) {
+#if defined(__x86_64__) || defined(__i386__)
+    __builtin_cpu_init();
+    if (!(__builtin_cpu_supports("avx2") && __builtin_cpu_supports("fma") &&
+          __builtin_cpu_supports("bmi") && __builtin_cpu_supports("bmi2"))) {
+        return 0;
+    }
+    if (__builtin_cpu_supports("avx512f") && __builtin_cpu_supports("avx512bw") &&
+        __builtin_cpu_supports("avx512dq") && __builtin_cpu_supports("avx512vl")) {
+        return 2;
+    }
+    return 1;
+#else
+    return 0;
+#endif
+}
 
 // Wrapper functions for xor8
 
@@ -11,6 +38,11 @@ bool xfuse_xor8_populate(uint64_t *keys, uint32_t size, xor8_t *filter) {
     return xor8_populate(keys, size, filter);
 }
 
+// Batches the counter updates by destination to stay cache friendly on large inputs
+bool xfuse_xor8_buffered_populate(uint64_t *keys, uint32_t size, xor8_t *filter) {
+    return xor8_buffered_populate(keys, size, filter);
+}
+
 bool xfuse_xor8_contain(uint64_t key, const xor8_t *filter) {
     return xor8_contain(key, filter);
 }
@@ -33,6 +65,10 @@ bool xfuse_xor16_populate(uint64_t *keys, uint32_t size, xor16_t *filter) {
     return xor16_populate(keys, size, filter);
 }
 
+bool xfuse_xor16_buffered_populate(uint64_t *keys, uint32_t size, xor16_t *filter) {
+    return xor16_buffered_populate(keys, size, filter);
+}
+
 bool xfuse_xor16_contain(uint64_t key, const xor16_t *filter) {
     return xor16_contain(key, filter);
 }
@@ -85,4 +121,867 @@ void xfuse_binary_fuse16_free(binary_fuse16_t *filter) {
 
 size_t xfuse_binary_fuse16_size_in_bytes(const binary_fuse16_t *filter) {
     return binary_fuse16_size_in_bytes(filter);
-}
\ No newline at end of file
+}
+
+// binaryfuse32.h has no populate of its own: construction goes through the
+// build context, like the 4-wise filters below.
+
+bool xfuse_binary_fuse32_allocate(uint32_t size, binary_fuse32_t *filter) {
+    return binary_fuse32_allocate(size, filter);
+}
+
+bool xfuse_binary_fuse32_populate(uint64_t *keys, uint32_t size, binary_fuse32_t *filter) {
+    xfuse_build_context_t context;
+    memset(&context, 0, sizeof(context));
+    bool ok = binary_fuse32_populate_context(keys, size, filter, &context);
+    xfuse_build_context_clear(&context);
+    return ok;
+}
+
+bool xfuse_binary_fuse32_contain(uint64_t key, const binary_fuse32_t *filter) {
+    return binary_fuse32_contain(key, filter);
+}
+
+void xfuse_binary_fuse32_free(binary_fuse32_t *filter) {
+    binary_fuse32_free(filter);
+}
+
+size_t xfuse_binary_fuse32_size_in_bytes(const binary_fuse32_t *filter) {
+    return binary_fuse32_size_in_bytes(filter);
+}
+
+// Bit-packed binary fuse filters of binaryfusebits.h: the fingerprint width is
+// given at allocation, and construction goes through the build context.
+
+bool xfuse_binary_fuse_bits_allocate(uint32_t size, uint32_t bits, binary_fuse_bits_t *filter) {
+    return binary_fuse_bits_allocate(size, bits, filter);
+}
+
+bool xfuse_binary_fuse_bits_populate(uint64_t *keys, uint32_t size, binary_fuse_bits_t *filter) {
+    xfuse_build_context_t context;
+    memset(&context, 0, sizeof(context));
+    bool ok = binary_fuse_bits_populate_context(keys, size, filter, &context);
+    xfuse_build_context_clear(&context);
+    return ok;
+}
+
+bool xfuse_binary_fuse_bits_contain(uint64_t key, const binary_fuse_bits_t *filter) {
+    return binary_fuse_bits_contain(key, filter);
+}
+
+void xfuse_binary_fuse_bits_free(binary_fuse_bits_t *filter) {
+    binary_fuse_bits_free(filter);
+}
+
+size_t xfuse_binary_fuse_bits_size_in_bytes(const binary_fuse_bits_t *filter) {
+    return binary_fuse_bits_size_in_bytes(filter);
+}
+
+// Retrieval: the slots of a binary_fuse_bits_t hold a value per key instead of
+// a zero, and a query returns the value. values[i] is the value of keys[i]; neither
+// array is modified. Returns 1 once built, 0 if construction failed, and -1 if a key
+// is repeated with two different values.
+
+int xfuse_binary_fuse_bits_populate_values(uint64_t *keys, const uint32_t *values, uint32_t size,
+                                           binary_fuse_bits_t *filter) {
+    xfuse_build_context_t context;
+    memset(&context, 0, sizeof(context));
+    bool ok = binary_fuse_bits_populate_values_context(keys, values, size, filter, &context);
+    bool conflict = context.conflict;
+    xfuse_build_context_clear(&context);
+    return ok ? 1 : conflict ? -1 : 0;
+}
+
+uint32_t xfuse_binary_fuse_bits_retrieve(uint64_t key, const binary_fuse_bits_t *filter) {
+    return binary_fuse_bits_retrieve(key, filter);
+}
+
+// 4-wise binary fuse filters, built by binary_fuse*_4wise_populate_context of
+// xfuse_build.h. Each key owns one of four slots instead of three, which brings the
+// array down to about 1.075 slots per key (8.6 bits per key for 8-bit fingerprints,
+// against 9.0 for 3-wise filters) for a fourth memory access per query. They share
+// their struct and serialized format with the 3-wise filters: free, size_in_bytes,
+// serialize, deserialize and pack are those of binary_fuse8 and binary_fuse16. Only
+// unpack, which recomputes the geometry, needs its own version.
+
+#define XFUSE_FUSE_4WISE(fuse, ftype) \
+static inline xfuse_fuse_shape_t xfuse_ ## fuse ## _4wise_shape(const binary_ ## fuse ## _t *filter) { \
+    xfuse_fuse_shape_t shape = {filter->Seed, 4, filter->SegmentLength, filter->SegmentLengthMask, \
+                                filter->SegmentCount, filter->SegmentCountLength, filter->ArrayLength}; \
+    return shape; \
+} \
+bool xfuse_binary_ ## fuse ## _4wise_allocate(uint32_t size, binary_ ## fuse ## _t *filter) { \
+    xfuse_fuse_shape_t shape = {0, 4, 0, 0, 0, 0, 0}; \
+    xfuse_fuse_layout(size, &shape); \
+    filter->Seed = 0; \
+    filter->Size = size; \
+    filter->SegmentLength = shape.SegmentLength; \
+    filter->SegmentLengthMask = shape.SegmentLengthMask; \
+    filter->SegmentCount = shape.SegmentCount; \
+    filter->SegmentCountLength = shape.SegmentCountLength; \
+    filter->ArrayLength = shape.ArrayLength; \
+    filter->Fingerprints = (ftype *)calloc(shape.ArrayLength, sizeof(ftype)); \
+    return filter->Fingerprints != NULL; \
+} \
+bool xfuse_binary_ ## fuse ## _4wise_populate_context(uint64_t *keys, uint32_t size, binary_ ## fuse ## _t *filter, \
+                                                      xfuse_build_context_t *context) { \
+    return binary_ ## fuse ## _4wise_populate_context(keys, size, filter, context); \
+} \
+bool xfuse_binary_ ## fuse ## _4wise_populate(uint64_t *keys, uint32_t size, binary_ ## fuse ## _t *filter) { \
+    xfuse_build_context_t context; \
+    memset(&context, 0, sizeof(context)); \
+    bool ok = binary_ ## fuse ## _4wise_populate_context(keys, size, filter, &context); \
+    xfuse_build_context_clear(&context); \
+    return ok; \
+} \
+bool xfuse_binary_ ## fuse ## _4wise_contain(uint64_t key, const binary_ ## fuse ## _t *filter) { \
+    xfuse_fuse_shape_t shape = xfuse_ ## fuse ## _4wise_shape(filter); \
+    uint64_t hash = binary_fuse_mix_split(key, filter->Seed); \
+    ftype f = binary_ ## fuse ## _fingerprint(hash); \
+    for (uint32_t j = 0; j < 4; j++) { \
+        f ^= filter->Fingerprints[xfuse_fuse_hash(j, hash, &shape)]; \
+    } \
+    return f == 0; \
+} \
+bool xfuse_binary_ ## fuse ## _4wise_unpack(binary_ ## fuse ## _t *filter, const char *buffer, size_t len) { \
+    const char *end = buffer + len; \
+    uint64_t seed; \
+    uint32_t size; \
+    memset(filter, 0, sizeof(*filter)); \
+    if (len < sizeof(seed) + sizeof(size)) { \
+        return false; \
+    } \
+    memcpy(&seed, buffer, sizeof(seed)); \
+    buffer += sizeof(seed); \
+    memcpy(&size, buffer, sizeof(size)); \
+    buffer += sizeof(size); \
+    if (!xfuse_binary_ ## fuse ## _4wise_allocate(size, filter)) { \
+        return false; \
+    } \
+    filter->Seed = seed; \
+    const uint8_t *bitmap = (const uint8_t *)buffer; \
+    size_t bitmapBytes = ((size_t)filter->ArrayLength + 7) / 8; \
+    if ((size_t)(end - buffer) < bitmapBytes) { \
+        return false; \
+    } \
+    buffer += bitmapBytes; \
+    for (size_t i = 0; i < filter->ArrayLength; i++) { \
+        if ((bitmap[i / 8] & (1U << (i % 8))) == 0) { \
+            continue; \
+        } \
+        if ((size_t)(end - buffer) < sizeof(ftype)) { \
+            return false; \
+        } \
+        memcpy(&filter->Fingerprints[i], buffer, sizeof(ftype)); \
+        buffer += sizeof(ftype); \
+    } \
+    return true; \
+}
+
+XFUSE_FUSE_4WISE(fuse8, uint8_t)
+XFUSE_FUSE_4WISE(fuse16, uint16_t)
+
+#undef XFUSE_FUSE_4WISE
+
+// Serialization wrappers. All formats use the native byte order.
+
+size_t xfuse_xor8_serialization_bytes(const xor8_t *filter) {
+    return xor8_serialization_bytes(filter);
+}
+
+void xfuse_xor8_serialize(const xor8_t *filter, char *buffer) {
+    xor8_serialize(filter, buffer);
+}
+
+bool xfuse_xor8_deserialize(xor8_t *filter, const char *buffer) {
+    return xor8_deserialize(filter, buffer);
+}
+
+size_t xfuse_xor8_pack_bytes(const xor8_t *filter) {
+    return xor8_pack_bytes(filter);
+}
+
+size_t xfuse_xor8_pack(const xor8_t *filter, char *buffer, size_t space) {
+    return xor8_pack(filter, buffer, space);
+}
+
+bool xfuse_xor8_unpack(xor8_t *filter, const char *buffer, size_t len) {
+    return xor8_unpack(filter, buffer, len);
+}
+
+size_t xfuse_xor16_serialization_bytes(xor16_t *filter) {
+    return xor16_serialization_bytes(filter);
+}
+
+void xfuse_xor16_serialize(const xor16_t *filter, char *buffer) {
+    xor16_serialize(filter, buffer);
+}
+
+bool xfuse_xor16_deserialize(xor16_t *filter, const char *buffer) {
+    return xor16_deserialize(filter, buffer);
+}
+
+size_t xfuse_xor16_pack_bytes(const xor16_t *filter) {
+    return xor16_pack_bytes(filter);
+}
+
+size_t xfuse_xor16_pack(const xor16_t *filter, char *buffer, size_t space) {
+    return xor16_pack(filter, buffer, space);
+}
+
+bool xfuse_xor16_unpack(xor16_t *filter, const char *buffer, size_t len) {
+    return xor16_unpack(filter, buffer, len);
+}
+
+size_t xfuse_binary_fuse8_serialization_bytes(const binary_fuse8_t *filter) {
+    return binary_fuse8_serialization_bytes(filter);
+}
+
+void xfuse_binary_fuse8_serialize(const binary_fuse8_t *filter, char *buffer) {
+    binary_fuse8_serialize(filter, buffer);
+}
+
+bool xfuse_binary_fuse8_deserialize(binary_fuse8_t *filter, const char *buffer) {
+    return binary_fuse8_deserialize(filter, buffer);
+}
+
+size_t xfuse_binary_fuse8_pack_bytes(const binary_fuse8_t *filter) {
+    return binary_fuse8_pack_bytes(filter);
+}
+
+size_t xfuse_binary_fuse8_pack(const binary_fuse8_t *filter, char *buffer, size_t space) {
+    return binary_fuse8_pack(filter, buffer, space);
+}
+
+bool xfuse_binary_fuse8_unpack(binary_fuse8_t *filter, const char *buffer, size_t len) {
+    return binary_fuse8_unpack(filter, buffer, len);
+}
+
+// binary_fuse16_serialization_bytes also counts SegmentLengthMask, which
+// binary_fuse16_serialize does not write: report the exact number of bytes.
+size_t xfuse_binary_fuse16_serialization_bytes(binary_fuse16_t *filter) {
+    return binary_fuse16_serialization_bytes(filter) - sizeof(filter->SegmentLengthMask);
+}
+
+void xfuse_binary_fuse16_serialize(const binary_fuse16_t *filter, char *buffer) {
+    binary_fuse16_serialize(filter, buffer);
+}
+
+bool xfuse_binary_fuse16_deserialize(binary_fuse16_t *filter, const char *buffer) {
+    return binary_fuse16_deserialize(filter, buffer);
+}
+
+size_t xfuse_binary_fuse16_pack_bytes(const binary_fuse16_t *filter) {
+    return binary_fuse16_pack_bytes(filter);
+}
+
+size_t xfuse_binary_fuse16_pack(const binary_fuse16_t *filter, char *buffer, size_t space) {
+    return binary_fuse16_pack(filter, buffer, space);
+}
+
+bool xfuse_binary_fuse16_unpack(binary_fuse16_t *filter, const char *buffer, size_t len) {
+    return binary_fuse16_unpack(filter, buffer, len);
+}
+
+size_t xfuse_binary_fuse32_serialization_bytes(const binary_fuse32_t *filter) {
+    return binary_fuse32_serialization_bytes(filter);
+}
+
+void xfuse_binary_fuse32_serialize(const binary_fuse32_t *filter, char *buffer) {
+    binary_fuse32_serialize(filter, buffer);
+}
+
+bool xfuse_binary_fuse32_deserialize(binary_fuse32_t *filter, const char *buffer) {
+    return binary_fuse32_deserialize(filter, buffer);
+}
+
+size_t xfuse_binary_fuse32_pack_bytes(const binary_fuse32_t *filter) {
+    return binary_fuse32_pack_bytes(filter);
+}
+
+size_t xfuse_binary_fuse32_pack(const binary_fuse32_t *filter, char *buffer, size_t space) {
+    return binary_fuse32_pack(filter, buffer, space);
+}
+
+bool xfuse_binary_fuse32_unpack(binary_fuse32_t *filter, const char *buffer, size_t len) {
+    return binary_fuse32_unpack(filter, buffer, len);
+}
+
+size_t xfuse_binary_fuse_bits_serialization_bytes(const binary_fuse_bits_t *filter) {
+    return binary_fuse_bits_serialization_bytes(filter);
+}
+
+void xfuse_binary_fuse_bits_serialize(const binary_fuse_bits_t *filter, char *buffer) {
+    binary_fuse_bits_serialize(filter, buffer);
+}
+
+bool xfuse_binary_fuse_bits_deserialize(binary_fuse_bits_t *filter, const char *buffer) {
+    return binary_fuse_bits_deserialize(filter, buffer);
+}
+
+size_t xfuse_binary_fuse_bits_pack_bytes(const binary_fuse_bits_t *filter) {
+    return binary_fuse_bits_pack_bytes(filter);
+}
+
+size_t xfuse_binary_fuse_bits_pack(const binary_fuse_bits_t *filter, char *buffer, size_t space) {
+    return binary_fuse_bits_pack(filter, buffer, space);
+}
+
+bool xfuse_binary_fuse_bits_unpack(binary_fuse_bits_t *filter, const char *buffer, size_t len) {
+    return binary_fuse_bits_unpack(filter, buffer, len);
+}
+
+// Zero-copy deserialization: the struct fields are read from the buffer and the
+// fingerprint pointer is set to the buffer itself, which must outlive the filter.
+// Nothing is allocated: never call *_free on such a filter.
+
+void xfuse_xor8_deserialize_view(xor8_t *filter, const char *buffer) {
+    memcpy(&filter->seed, buffer, sizeof(filter->seed));
+    buffer += sizeof(filter->seed);
+    memcpy(&filter->blockLength, buffer, sizeof(filter->blockLength));
+    buffer += sizeof(filter->blockLength);
+    filter->fingerprints = (uint8_t *)(uintptr_t)buffer;
+}
+
+void xfuse_xor16_deserialize_view(xor16_t *filter, const char *buffer) {
+    memcpy(&filter->seed, buffer, sizeof(filter->seed));
+    buffer += sizeof(filter->seed);
+    memcpy(&filter->blockLength, buffer, sizeof(filter->blockLength));
+    buffer += sizeof(filter->blockLength);
+    filter->fingerprints = (uint16_t *)(uintptr_t)buffer;
+}
+
+void xfuse_binary_fuse8_deserialize_view(binary_fuse8_t *filter, const char *buffer) {
+    const char *fingerprints = binary_fuse8_deserialize_header(filter, buffer);
+    filter->Fingerprints = (uint8_t *)(uintptr_t)fingerprints;
+}
+
+void xfuse_binary_fuse16_deserialize_view(binary_fuse16_t *filter, const char *buffer) {
+    const char *fingerprints = binary_fuse16_deserialize_header(filter, buffer);
+    filter->Fingerprints = (uint16_t *)(uintptr_t)fingerprints;
+}
+
+void xfuse_binary_fuse32_deserialize_view(binary_fuse32_t *filter, const char *buffer) {
+    const char *fingerprints = binary_fuse32_deserialize_header(filter, buffer);
+    filter->Fingerprints = (uint32_t *)(uintptr_t)fingerprints;
+}
+
+// Unlike the other views, fails on a width out of range.
+bool xfuse_binary_fuse_bits_deserialize_view(binary_fuse_bits_t *filter, const char *buffer) {
+    const char *fingerprints = binary_fuse_bits_deserialize_header(filter, buffer);
+    if (fingerprints == NULL) {
+        return false;
+    }
+    filter->Fingerprints = (uint8_t *)(uintptr_t)fingerprints;
+    return true;
+}
+
+// Batched membership queries.
+//
+// Keys are processed in blocks of XFUSE_BATCH_BLOCK: a first pass hashes every
+// key of the block and prefetches its fingerprint slots, a second pass compares
+// the fingerprints. By the time the second pass runs, most of the cache misses
+// of the block are in flight or resolved, instead of being serialized one key
+// at a time. Bit (i % 64) of bitmap[i / 64] is set when keys[i] may be in the
+// set. Returns the number of such keys.
+
+#define XFUSE_BATCH_BLOCK 64
+
+static inline void xfuse_prefetch(const void *address) {
+#if defined(__GNUC__) || defined(__clang__)
+    __builtin_prefetch(address);
+#else
+    (void)address;
+#endif
+}
+
+static inline size_t xfuse_popcount64(uint64_t word) {
+#if defined(__GNUC__) || defined(__clang__)
+    return (size_t)__builtin_popcountll(word);
+#else
+    size_t count = 0;
+    while (word != 0) {
+        word &= word - 1;
+        count++;
+    }
+    return count;
+#endif
+}
+
+#define XFUSE_FUSE_BATCH(fuse, ftype) \
+size_t xfuse_binary_ ## fuse ## _contain_batch(const uint64_t *keys, size_t count, \
+                                               uint64_t *bitmap, const binary_ ## fuse ## _t *filter) { \
+    binary_hashes_t hashes[XFUSE_BATCH_BLOCK]; \
+    ftype fingerprints[XFUSE_BATCH_BLOCK]; \
+    size_t matches = 0; \
+    for (size_t base = 0; base < count; base += XFUSE_BATCH_BLOCK) { \
+        size_t n = count - base < XFUSE_BATCH_BLOCK ? count - base : XFUSE_BATCH_BLOCK; \
+        for (size_t i = 0; i < n; i++) { \
+            uint64_t hash = binary_fuse_mix_split(keys[base + i], filter->Seed); \
+            fingerprints[i] = binary_ ## fuse ## _fingerprint(hash); \
+            hashes[i] = binary_ ## fuse ## _hash_batch(hash, filter); \
+            xfuse_prefetch(filter->Fingerprints + hashes[i].h0); \
+            xfuse_prefetch(filter->Fingerprints + hashes[i].h1); \
+            xfuse_prefetch(filter->Fingerprints + hashes[i].h2); \
+        } \
+        uint64_t word = 0; \
+        for (size_t i = 0; i < n; i++) { \
+            ftype f = (ftype)((uint32_t)fingerprints[i] ^ \
+                              filter->Fingerprints[hashes[i].h0] ^ \
+                              filter->Fingerprints[hashes[i].h1] ^ \
+                              filter->Fingerprints[hashes[i].h2]); \
+            word |= (uint64_t)(f == 0) << i; \
+        } \
+        bitmap[base / XFUSE_BATCH_BLOCK] = word; \
+        matches += xfuse_popcount64(word); \
+    } \
+    return matches; \
+}
+
+#define XFUSE_XOR_BATCH(xbits, ftype) \
+size_t xfuse_xor ## xbits ## _contain_batch(const uint64_t *keys, size_t count, \
+                                            uint64_t *bitmap, const xor ## xbits ## _t *filter) { \
+    xor_hashes_t hashes[XFUSE_BATCH_BLOCK]; \
+    const ftype *fingerprints1 = filter->fingerprints + filter->blockLength; \
+    const ftype *fingerprints2 = filter->fingerprints + 2 * filter->blockLength; \
+    size_t matches = 0; \
+    for (size_t base = 0; base < count; base += XFUSE_BATCH_BLOCK) { \
+        size_t n = count - base < XFUSE_BATCH_BLOCK ? count - base : XFUSE_BATCH_BLOCK; \
+        for (size_t i = 0; i < n; i++) { \
+            hashes[i] = xor ## xbits ## _get_h0_h1_h2(keys[base + i], filter); \
+            xfuse_prefetch(filter->fingerprints + hashes[i].h0); \
+            xfuse_prefetch(fingerprints1 + hashes[i].h1); \
+            xfuse_prefetch(fingerprints2 + hashes[i].h2); \
+        } \
+        uint64_t word = 0; \
+        for (size_t i = 0; i < n; i++) { \
+            ftype f = (ftype)xor_fingerprint(hashes[i].h); \
+            bool match = f == ((uint32_t)filter->fingerprints[hashes[i].h0] ^ \
+                               fingerprints1[hashes[i].h1] ^ \
+                               fingerprints2[hashes[i].h2]); \
+            word |= (uint64_t)match << i; \
+        } \
+        bitmap[base / XFUSE_BATCH_BLOCK] = word; \
+        matches += xfuse_popcount64(word); \
+    } \
+    return matches; \
+}
+
+#define XFUSE_FUSE_4WISE_BATCH(fuse, ftype) \
+size_t xfuse_binary_ ## fuse ## _4wise_contain_batch(const uint64_t *keys, size_t count, \
+                                                     uint64_t *bitmap, const binary_ ## fuse ## _t *filter) { \
+    xfuse_fuse_shape_t shape = xfuse_ ## fuse ## _4wise_shape(filter); \
+    uint32_t slots[XFUSE_BATCH_BLOCK][4]; \
+    ftype fingerprints[XFUSE_BATCH_BLOCK]; \
+    size_t matches = 0; \
+    for (size_t base = 0; base < count; base += XFUSE_BATCH_BLOCK) { \
+        size_t n = count - base < XFUSE_BATCH_BLOCK ? count - base : XFUSE_BATCH_BLOCK; \
+        for (size_t i = 0; i < n; i++) { \
+            uint64_t hash = binary_fuse_mix_split(keys[base + i], filter->Seed); \
+            fingerprints[i] = binary_ ## fuse ## _fingerprint(hash); \
+            for (uint32_t j = 0; j < 4; j++) { \
+                slots[i][j] = xfuse_fuse_hash(j, hash, &shape); \
+                xfuse_prefetch(filter->Fingerprints + slots[i][j]); \
+            } \
+        } \
+        uint64_t word = 0; \
+        for (size_t i = 0; i < n; i++) { \
+            ftype f = (ftype)((uint32_t)fingerprints[i] ^ \
+                              filter->Fingerprints[slots[i][0]] ^ \
+                              filter->Fingerprints[slots[i][1]] ^ \
+                              filter->Fingerprints[slots[i][2]] ^ \
+                              filter->Fingerprints[slots[i][3]]); \
+            word |= (uint64_t)(f == 0) << i; \
+        } \
+        bitmap[base / XFUSE_BATCH_BLOCK] = word; \
+        matches += xfuse_popcount64(word); \
+    } \
+    return matches; \
+}
+
+XFUSE_XOR_BATCH(8, uint8_t)
+XFUSE_XOR_BATCH(16, uint16_t)
+XFUSE_FUSE_BATCH(fuse8, uint8_t)
+XFUSE_FUSE_BATCH(fuse16, uint16_t)
+XFUSE_FUSE_BATCH(fuse32, uint32_t)
+XFUSE_FUSE_4WISE_BATCH(fuse8, uint8_t)
+XFUSE_FUSE_4WISE_BATCH(fuse16, uint16_t)
+
+size_t xfuse_binary_fuse_bits_contain_batch(const uint64_t *keys, size_t count,
+                                            uint64_t *bitmap, const binary_fuse_bits_t *filter) {
+    binary_hashes_t hashes[XFUSE_BATCH_BLOCK];
+    uint32_t fingerprints[XFUSE_BATCH_BLOCK];
+    const uint64_t bits = filter->Bits;
+    size_t matches = 0;
+    for (size_t base = 0; base < count; base += XFUSE_BATCH_BLOCK) {
+        size_t n = count - base < XFUSE_BATCH_BLOCK ? count - base : XFUSE_BATCH_BLOCK;
+        for (size_t i = 0; i < n; i++) {
+            uint64_t hash = binary_fuse_mix_split(keys[base + i], filter->Seed);
+            fingerprints[i] = binary_fuse_bits_fingerprint(hash);
+            hashes[i] = binary_fuse_bits_hash_batch(hash, filter);
+            xfuse_prefetch(filter->Fingerprints + ((hashes[i].h0 * bits) >> 3));
+            xfuse_prefetch(filter->Fingerprints + ((hashes[i].h1 * bits) >> 3));
+            xfuse_prefetch(filter->Fingerprints + ((hashes[i].h2 * bits) >> 3));
+        }
+        uint64_t word = 0;
+        for (size_t i = 0; i < n; i++) {
+            uint32_t f = fingerprints[i] ^
+                         binary_fuse_bits_get(filter, hashes[i].h0) ^
+                         binary_fuse_bits_get(filter, hashes[i].h1) ^
+                         binary_fuse_bits_get(filter, hashes[i].h2);
+            word |= (uint64_t)((f & filter->Mask) == 0) << i;
+        }
+        bitmap[base / XFUSE_BATCH_BLOCK] = word;
+        matches += xfuse_popcount64(word);
+    }
+    return matches;
+}
+
+// As xfuse_binary_fuse_bits_contain_batch, writing the value of each key to
+// values[i].
+void xfuse_binary_fuse_bits_retrieve_batch(const uint64_t *keys, size_t count,
+                                           uint32_t *values, const binary_fuse_bits_t *filter) {
+    binary_hashes_t hashes[XFUSE_BATCH_BLOCK];
+    uint32_t fingerprints[XFUSE_BATCH_BLOCK];
+    const uint64_t bits = filter->Bits;
+    for (size_t base = 0; base < count; base += XFUSE_BATCH_BLOCK) {
+        size_t n = count - base < XFUSE_BATCH_BLOCK ? count - base : XFUSE_BATCH_BLOCK;
+        for (size_t i = 0; i < n; i++) {
+            uint64_t hash = binary_fuse_mix_split(keys[base + i], filter->Seed);
+            fingerprints[i] = binary_fuse_bits_fingerprint(hash);
+            hashes[i] = binary_fuse_bits_hash_batch(hash, filter);
+            xfuse_prefetch(filter->Fingerprints + ((hashes[i].h0 * bits) >> 3));
+            xfuse_prefetch(filter->Fingerprints + ((hashes[i].h1 * bits) >> 3));
+            xfuse_prefetch(filter->Fingerprints + ((hashes[i].h2 * bits) >> 3));
+        }
+        for (size_t i = 0; i < n; i++) {
+            values[base + i] = (fingerprints[i] ^
+                                binary_fuse_bits_get(filter, hashes[i].h0) ^
+                                binary_fuse_bits_get(filter, hashes[i].h1) ^
+                                binary_fuse_bits_get(filter, hashes[i].h2)) & filter->Mask;
+        }
+    }
+}
+
+#undef XFUSE_XOR_BATCH
+#undef XFUSE_FUSE_BATCH
+#undef XFUSE_FUSE_4WISE_BATCH
+
+// Selection vectors.
+//
+// xfuse_<type>_select tests a column of 'rows' keys and keeps the rows that may
+// be in the set, for semi-joins. Without an input selection, every row is tested;
+// with one, the rows selection[0] to selection[selected - 1]. The index of each
+// row kept is written to selectionOut and its key to keysOut, in order, when they
+// are not NULL; either may alias its input, as a block is read before any of its
+// output is written. Each block of XFUSE_BATCH_BLOCK rows goes through
+// contain_batch, and only the set bits of its bitmap word are visited. Returns
+// the number of rows kept, or SIZE_MAX if the selection holds an index past the
+// column.
+
+static inline uint32_t xfuse_ctz64(uint64_t word) {
+#if defined(__GNUC__) || defined(__clang__)
+    return (uint32_t)__builtin_ctzll(word);
+#else
+    uint32_t n = 0;
+    while ((word & 1) == 0) {
+        word >>= 1;
+        n++;
+    }
+    return n;
+#endif
+}
+
+#define XFUSE_SELECT(name, type) \
+size_t xfuse_ ## name ## _select(const uint64_t *column, size_t rows, const uint32_t *selection, \
+                                 size_t selected, uint32_t *selectionOut, uint64_t *keysOut, \
+                                 const type *filter) { \
+    uint64_t keys[XFUSE_BATCH_BLOCK]; \
+    uint32_t index[XFUSE_BATCH_BLOCK]; \
+    size_t count = selection != NULL ? selected : rows; \
+    size_t kept = 0; \
+    for (size_t base = 0; base < count; base += XFUSE_BATCH_BLOCK) { \
+        size_t n = count - base < XFUSE_BATCH_BLOCK ? count - base : XFUSE_BATCH_BLOCK; \
+        if (selection != NULL) { \
+            for (size_t i = 0; i < n; i++) { \
+                index[i] = selection[base + i]; \
+                if (index[i] >= rows) { \
+                    return SIZE_MAX; \
+                } \
+                keys[i] = column[index[i]]; \
+            } \
+        } else { \
+            for (size_t i = 0; i < n; i++) { \
+                index[i] = (uint32_t)(base + i); \
+                keys[i] = column[base + i]; \
+            } \
+        } \
+        uint64_t word; \
+        xfuse_ ## name ## _contain_batch(keys, n, &word, filter); \
+        for (; word != 0; word &= word - 1) { \
+            uint32_t i = xfuse_ctz64(word); \
+            if (selectionOut != NULL) { \
+                selectionOut[kept] = index[i]; \
+            } \
+            if (keysOut != NULL) { \
+                keysOut[kept] = keys[i]; \
+            } \
+            kept++; \
+        } \
+    } \
+    return kept; \
+}
+
+XFUSE_SELECT(xor8, xor8_t)
+XFUSE_SELECT(xor16, xor16_t)
+XFUSE_SELECT(binary_fuse8, binary_fuse8_t)
+XFUSE_SELECT(binary_fuse16, binary_fuse16_t)
+XFUSE_SELECT(binary_fuse32, binary_fuse32_t)
+XFUSE_SELECT(binary_fuse8_4wise, binary_fuse8_4wise_t)
+XFUSE_SELECT(binary_fuse16_4wise, binary_fuse16_4wise_t)
+XFUSE_SELECT(binary_fuse_bits, binary_fuse_bits_t)
+
+#undef XFUSE_SELECT
+
+// Hashing of variable-length keys.
+//
+// Byte strings are reduced to the 64-bit keys stored in the filters. The input is
+// consumed as little-endian 64-bit words, a partial last word being zero-padded;
+// each word is multiplied, folded into the state and mixed, and the length and the
+// murmur finalizer are applied last. KeyHasher.java mirrors this bit for bit, so keys
+// hashed natively at build time match keys hashed in Java at query time.
+
+#define XFUSE_HASH_SEED 0x9e3779b97f4a7c15ULL
+#define XFUSE_HASH_K1 0x87c37b91114253d5ULL
+#define XFUSE_HASH_K2 0x4cf5ad432745937fULL
+
+static inline uint64_t xfuse_load64_le(const uint8_t *p, size_t n) {
+    uint64_t word = 0;
+    memcpy(&word, p, n);
+#if defined(__BYTE_ORDER__) && __BYTE_ORDER__ == __ORDER_BIG_ENDIAN__
+    word = __builtin_bswap64(word);
+    if (n < 8) {
+        word >>= 64 - 8 * n;
+    }
+#endif
+    return word;
+}
+
+static inline uint64_t xfuse_hash_word(uint64_t h, uint64_t word) {
+    h ^= word * XFUSE_HASH_K1;
+    h = (h << 31) | (h >> 33);
+    return h * XFUSE_HASH_K2;
+}
+
+uint64_t xfuse_hash_bytes(const uint8_t *data, size_t length) {
+    uint64_t h = XFUSE_HASH_SEED;
+    size_t i = 0;
+    for (; i + 8 <= length; i += 8) {
+        h = xfuse_hash_word(h, xfuse_load64_le(data + i, 8));
+    }
+    if (i < length) {
+        h = xfuse_hash_word(h, xfuse_load64_le(data + i, length - i));
+    }
+    return binary_fuse_murmur64(h ^ (uint64_t)length);
+}
+
+// Hashes count keys, the i-th spanning data[offsets[i]] to data[offsets[i + 1]].
+void xfuse_hash_keys(const uint8_t *data, const uint64_t *offsets, size_t count, uint64_t *out) {
+    for (size_t i = 0; i < count; i++) {
+        out[i] = xfuse_hash_bytes(data + offsets[i], (size_t)(offsets[i + 1] - offsets[i]));
+    }
+}
+
+#undef XFUSE_HASH_SEED
+#undef XFUSE_HASH_K1
+#undef XFUSE_HASH_K2
+
+// Build contexts: scratch memory reused across populate calls from one thread
+
+xfuse_build_context_t *xfuse_build_context_new(void) {
+    return (xfuse_build_context_t *)calloc(1, sizeof(xfuse_build_context_t));
+}
+
+void xfuse_build_context_free(xfuse_build_context_t *context) {
+    if (context != NULL) {
+        xfuse_build_context_clear(context);
+        free(context);
+    }
+}
+
+void xfuse_build_context_trim(xfuse_build_context_t *context) {
+    xfuse_build_context_clear(context);
+}
+
+size_t xfuse_build_context_size_in_bytes(const xfuse_build_context_t *context) {
+    return context->reverseOrder.capacity + context->reverseH.capacity + context->alone.capacity +
+           context->t2count.capacity + context->t2hash.capacity + context->startPos.capacity +
+           context->reverseValue.capacity + context->t2value.capacity +
+           context->sets.capacity + context->queue.capacity + context->stack.capacity;
+}
+
+uint32_t xfuse_build_context_attempts(const xfuse_build_context_t *context) {
+    return context->attempts;
+}
+
+bool xfuse_xor8_populate_context(uint64_t *keys, uint32_t size, xor8_t *filter, xfuse_build_context_t *context) {
+    return xor8_populate_context(keys, size, filter, context);
+}
+
+bool xfuse_xor16_populate_context(uint64_t *keys, uint32_t size, xor16_t *filter, xfuse_build_context_t *context) {
+    return xor16_populate_context(keys, size, filter, context);
+}
+
+bool xfuse_binary_fuse8_populate_context(uint64_t *keys, uint32_t size, binary_fuse8_t *filter, xfuse_build_context_t *context) {
+    return binary_fuse8_populate_context(keys, size, filter, context);
+}
+
+bool xfuse_binary_fuse16_populate_context(uint64_t *keys, uint32_t size, binary_fuse16_t *filter, xfuse_build_context_t *context) {
+    return binary_fuse16_populate_context(keys, size, filter, context);
+}
+
+bool xfuse_binary_fuse32_populate_context(uint64_t *keys, uint32_t size, binary_fuse32_t *filter, xfuse_build_context_t *context) {
+    return binary_fuse32_populate_context(keys, size, filter, context);
+}
+
+bool xfuse_binary_fuse_bits_populate_context(uint64_t *keys, uint32_t size, binary_fuse_bits_t *filter, xfuse_build_context_t *context) {
+    return binary_fuse_bits_populate_context(keys, size, filter, context);
+}
+
+// Allocation into caller memory. xfuse_<type>_fingerprint_bytes(size) is the size
+// of the fingerprint array that xfuse_<type>_allocate(size, filter) would malloc;
+// xfuse_<type>_allocate_in sets the filter up the same way but with its fingerprints
+// in 'buffer', which must hold that many bytes, be suitably aligned, and outlive the
+// filter. Such a filter must not be passed to the _free functions. Binary fuse
+// fingerprints are expected to be zeroed, as calloc would have.
+
+static size_t xfuse_xor_capacity(uint32_t size) {
+    size_t capacity = (size_t)(32 + 1.23 * size);
+    return capacity / 3 * 3;
+}
+
+size_t xfuse_xor8_fingerprint_bytes(uint32_t size) {
+    return xfuse_xor_capacity(size) * sizeof(uint8_t);
+}
+
+bool xfuse_xor8_allocate_in(uint32_t size, xor8_t *filter, void *buffer, size_t bytes) {
+    size_t capacity = xfuse_xor_capacity(size);
+    if (buffer == NULL || bytes < capacity * sizeof(uint8_t)) {
+        return false;
+    }
+    filter->seed = 0;
+    filter->blockLength = capacity / 3;
+    filter->fingerprints = (uint8_t *)buffer;
+    return true;
+}
+
+size_t xfuse_xor16_fingerprint_bytes(uint32_t size) {
+    return xfuse_xor_capacity(size) * sizeof(uint16_t);
+}
+
+bool xfuse_xor16_allocate_in(uint32_t size, xor16_t *filter, void *buffer, size_t bytes) {
+    size_t capacity = xfuse_xor_capacity(size);
+    if (buffer == NULL || bytes < capacity * sizeof(uint16_t)) {
+        return false;
+    }
+    filter->seed = 0;
+    filter->blockLength = capacity / 3;
+    filter->fingerprints = (uint16_t *)buffer;
+    return true;
+}
+
+#define XFUSE_FUSE_ALLOCATE_IN(fuse, ftype, arity) \
+size_t xfuse_binary_ ## fuse ## _fingerprint_bytes(uint32_t size) { \
+    xfuse_fuse_shape_t shape = {0, (arity), 0, 0, 0, 0, 0}; \
+    xfuse_fuse_layout(size, &shape); \
+    return (size_t)shape.ArrayLength * sizeof(ftype); \
+} \
+bool xfuse_binary_ ## fuse ## _allocate_in(uint32_t size, binary_ ## fuse ## _t *filter, void *buffer, size_t bytes) { \
+    xfuse_fuse_shape_t shape = {0, (arity), 0, 0, 0, 0, 0}; \
+    xfuse_fuse_layout(size, &shape); \
+    if (buffer == NULL || bytes < (size_t)shape.ArrayLength * sizeof(ftype)) { \
+        return false; \
+    } \
+    filter->Seed = 0; \
+    filter->Size = size; \
+    filter->SegmentLength = shape.SegmentLength; \
+    filter->SegmentLengthMask = shape.SegmentLengthMask; \
+    filter->SegmentCount = shape.SegmentCount; \
+    filter->SegmentCountLength = shape.SegmentCountLength; \
+    filter->ArrayLength = shape.ArrayLength; \
+    filter->Fingerprints = (ftype *)buffer; \
+    return true; \
+}
+
+XFUSE_FUSE_ALLOCATE_IN(fuse8, uint8_t, 3)
+XFUSE_FUSE_ALLOCATE_IN(fuse16, uint16_t, 3)
+XFUSE_FUSE_ALLOCATE_IN(fuse32, uint32_t, 3)
+XFUSE_FUSE_ALLOCATE_IN(fuse8_4wise, uint8_t, 4)
+XFUSE_FUSE_ALLOCATE_IN(fuse16_4wise, uint16_t, 4)
+
+#undef XFUSE_FUSE_ALLOCATE_IN
+
+// Bit-packed filters take the fingerprint width as well. The buffer needs no
+// particular alignment.
+
+size_t xfuse_binary_fuse_bits_fingerprint_bytes(uint32_t size, uint32_t bits) {
+    binary_fuse_bits_t filter;
+    if (!binary_fuse_bits_init(size, bits, &filter)) {
+        return 0;
+    }
+    return binary_fuse_bits_array_bytes(filter.ArrayLength, bits);
+}
+
+bool xfuse_binary_fuse_bits_allocate_in(uint32_t size, uint32_t bits, binary_fuse_bits_t *filter,
+                                        void *buffer, size_t bytes) {
+    if (!binary_fuse_bits_init(size, bits, filter)) {
+        return false;
+    }
+    if (buffer == NULL || bytes < binary_fuse_bits_array_bytes(filter->ArrayLength, bits)) {
+        return false;
+    }
+    filter->Fingerprints = (uint8_t *)buffer;
+    return true;
+}
+
+// Asks the kernel to back the 2 MB pages within [address, address + bytes) with
+// transparent huge pages. The range must be private anonymous memory that is all
+// zero, such as a fresh allocation: since the allocator zeroed it, it is already
+// backed by small pages, which the advice alone would leave in place until
+// khugepaged gets to them. They are dropped instead, and the next touch faults in
+// a zeroed huge page. Returns 0 on success, -1 where huge pages are unavailable or
+// the range holds no whole 2 MB page; either way, the memory stays usable.
+#if defined(__linux__) && defined(MADV_HUGEPAGE)
+// madvise accepts MADV_HUGEPAGE even when transparent huge pages are set to never
+static bool xfuse_huge_pages_enabled(void) {
+    FILE *file = fopen("/sys/kernel/mm/transparent_hugepage/enabled", "r");
+    if (file == NULL) {
+        return false;
+    }
+    char mode[64];
+    size_t n = fread(mode, 1, sizeof(mode) - 1, file);
+    fclose(file);
+    mode[n] = '\0';
+    return strstr(mode, "[never]") == NULL;
+}
+#endif
+
+int xfuse_advise_huge_pages(void *address, size_t bytes) {
+#if defined(__linux__) && defined(MADV_HUGEPAGE)
+    const uintptr_t huge = (uintptr_t)1 << 21;
+    uintptr_t start = ((uintptr_t)address + huge - 1) & ~(huge - 1);
+    uintptr_t end = ((uintptr_t)address + bytes) & ~(huge - 1);
+    if (end <= start || !xfuse_huge_pages_enabled()) {
+        return -1;
+    }
+    if (madvise((void *)start, end - start, MADV_HUGEPAGE) != 0) {
+        return -1;
+    }
+    madvise((void *)start, end - start, MADV_DONTNEED);
+    return 0;
+#else
+    (void)address;
+    (void)bytes;
+    return -1;
+#endif
+}
@@ -0,0 +1,610 @@
+#ifndef XFUSE_BUILD_H
+#define XFUSE_BUILD_H
+#include <stdbool.h>
+#include <stdint.h>
+#include <stdlib.h>
+#include <string.h>
+#include "xorfilter.h"
+#include "binaryfusefilter.h"
+#include "binaryfuse32.h"
+#include "binaryfusebits.h"
+
+// Filter construction with caller-owned scratch memory.
+//
+// The populate functions of xorfilter.h and binaryfusefilter.h allocate their
+// scratch arrays on every call and free them before returning. When many filters
+// are rebuilt in a loop, that churn shows up as allocator time and page faults.
+// A build context owns these arrays and only grows them, so that repeated builds
+// from the same thread reuse warm memory. The algorithms below are those of the
+// upstream populate functions, written once for any fingerprint width (and, for
+// binary fuse filters, any arity): they try the same seeds and peel in the same
+// order. Slots that no key owns are zeroed here, whereas the upstream functions
+// leave whatever malloc returned, so the fingerprints equal upstream's only when
+// its array starts zeroed.
+
+typedef struct xfuse_scratch_s {
+  void *data;
+  size_t capacity; // in bytes
+} xfuse_scratch_t;
+
+typedef struct xfuse_build_context_s {
+  // binary fuse filters
+  xfuse_scratch_t reverseOrder;
+  xfuse_scratch_t reverseH;
+  xfuse_scratch_t alone;
+  xfuse_scratch_t t2count;
+  xfuse_scratch_t t2hash;
+  xfuse_scratch_t startPos;
+  // binary fuse retrieval: the value carried along with each hash
+  xfuse_scratch_t reverseValue;
+  xfuse_scratch_t t2value;
+  // binary fuse retrieval: the sorted (key, value) pairs, once duplicates are found
+  xfuse_scratch_t pairs;
+  xfuse_scratch_t uniqueValues;
+  // xor filters
+  xfuse_scratch_t sets;
+  xfuse_scratch_t queue;
+  xfuse_scratch_t stack;
+  // number of seeds tried by the last construction
+  uint32_t attempts;
+  // set when the last construction found a key with two different values
+  bool conflict;
+} xfuse_build_context_t;
+
+// Returns at least 'bytes' bytes of uninitialized scratch memory, or NULL.
+static inline void *xfuse_reserve(xfuse_scratch_t *scratch, size_t bytes) {
+  if (bytes == 0) {
+    bytes = 1;
+  }
+  if (bytes > scratch->capacity) {
+    size_t grown = scratch->capacity + scratch->capacity / 2;
+    size_t capacity = bytes > grown ? bytes : grown;
+    free(scratch->data);
+    scratch->data = malloc(capacity);
+    scratch->capacity = scratch->data == NULL ? 0 : capacity;
+  }
+  return scratch->data;
+}
+
+// Frees the scratch memory; the context remains usable.
+static inline void xfuse_build_context_clear(xfuse_build_context_t *context) {
+  xfuse_scratch_t *all[] = {&context->reverseOrder, &context->reverseH, &context->alone,
+                            &context->t2count, &context->t2hash, &context->startPos,
+                            &context->reverseValue, &context->t2value,
+                            &context->pairs, &context->uniqueValues,
+                            &context->sets, &context->queue, &context->stack};
+  for (size_t i = 0; i < sizeof(all) / sizeof(all[0]); i++) {
+    free(all[i]->data);
+    all[i]->data = NULL;
+    all[i]->capacity = 0;
+  }
+}
+
+//////////////////
+// binary fuse
+//////////////////
+
+// The parameters of a binary fuse filter that construction depends on.
+typedef struct xfuse_fuse_shape_s {
+  uint64_t Seed;
+  uint32_t Arity;
+  uint32_t SegmentLength;
+  uint32_t SegmentLengthMask;
+  uint32_t SegmentCount;
+  uint32_t SegmentCountLength;
+  uint32_t ArrayLength;
+} xfuse_fuse_shape_t;
+
+// Fills in the geometry of a filter of 'size' keys with shape->Arity slots per
+// key, as binary_fuse8_allocate does for arity 3, without allocating anything.
+// binary_fuse_calculate_segment_length shifts by a negative amount for a single
+// key with arity 4, so sets of at most one key get the length upstream gives them
+// with arity 3.
+static inline void xfuse_fuse_layout(uint32_t size, xfuse_fuse_shape_t *shape) {
+  uint32_t arity = shape->Arity;
+  shape->SegmentLength = size <= 1 ? 4 : binary_fuse_calculate_segment_length(arity, size);
+  if (shape->SegmentLength > 262144) {
+    shape->SegmentLength = 262144;
+  }
+  shape->SegmentLengthMask = shape->SegmentLength - 1;
+  double sizeFactor = size <= 1 ? 0 : binary_fuse_calculate_size_factor(arity, size);
+  uint32_t capacity = size <= 1 ? 0 : (uint32_t)(round((double)size * sizeFactor));
+  uint32_t initSegmentCount =
+      (capacity + shape->SegmentLength - 1) / shape->SegmentLength - (arity - 1);
+  shape->ArrayLength = (initSegmentCount + arity - 1) * shape->SegmentLength;
+  shape->SegmentCount = (shape->ArrayLength + shape->SegmentLength - 1) / shape->SegmentLength;
+  if (shape->SegmentCount <= arity - 1) {
+    shape->SegmentCount = 1;
+  } else {
+    shape->SegmentCount = shape->SegmentCount - (arity - 1);
+  }
+  shape->ArrayLength = (shape->SegmentCount + arity - 1) * shape->SegmentLength;
+  shape->SegmentCountLength = shape->SegmentCount * shape->SegmentLength;
+}
+
+// Location of the index-th slot of hash: segment from the high bits, then an
+// 18-bit slice of the low 18 * (Arity - 1) bits within the segment. For arity 3,
+// this is binary_fuse8_hash.
+static inline uint32_t xfuse_fuse_hash(uint32_t index, uint64_t hash,
+                                       const xfuse_fuse_shape_t *shape) {
+  uint64_t h = binary_fuse_mulhi(hash, shape->SegmentCountLength);
+  h += (uint64_t)index * shape->SegmentLength;
+  uint32_t hashBits = 18 * (shape->Arity - 1);
+  uint64_t hh = hash & ((1ULL << hashBits) - 1);
+  h ^= (size_t)((hh >> (hashBits - 18 * index)) & shape->SegmentLengthMask);
+  return (uint32_t)h;
+}
+
+typedef struct xfuse_pair_s {
+  uint64_t key;
+  uint32_t value;
+} xfuse_pair_t;
+
+static int xfuse_pair_cmpfunc(const void *a, const void *b) {
+  const xfuse_pair_t *x = (const xfuse_pair_t *)a;
+  const xfuse_pair_t *y = (const xfuse_pair_t *)b;
+  if (x->key != y->key) {
+    return x->key < y->key ? -1 : 1;
+  }
+  return (x->value > y->value) - (x->value < y->value);
+}
+
+// binary_fuse_sort_and_remove_dup for keys that carry a value: sorts the pairs and
+// keeps one copy of each. On success, *keys and *values point to the distinct pairs
+// in the scratch memory of the context, and *size is their number. Returns false,
+// setting context->conflict, if a key comes with two different values.
+static inline bool xfuse_sort_and_remove_dup_pairs(uint64_t **keys, const uint32_t **values,
+                                                   uint32_t *size, xfuse_build_context_t *context) {
+  uint32_t n = *size;
+  xfuse_pair_t *pairs = (xfuse_pair_t *)xfuse_reserve(&context->pairs, (size_t)n * sizeof(xfuse_pair_t));
+  uint32_t *uniqueValues = (uint32_t *)xfuse_reserve(&context->uniqueValues, (size_t)n * sizeof(uint32_t));
+  if ((pairs == NULL) || (uniqueValues == NULL)) {
+    return false;
+  }
+  for (uint32_t i = 0; i < n; i++) {
+    pairs[i].key = (*keys)[i];
+    pairs[i].value = (*values)[i];
+  }
+  qsort(pairs, n, sizeof(xfuse_pair_t), xfuse_pair_cmpfunc);
+  uint32_t j = n == 0 ? 0 : 1;
+  for (uint32_t i = 1; i < n; i++) {
+    if (pairs[i].key != pairs[j - 1].key) {
+      pairs[j++] = pairs[i];
+    } else if (pairs[i].value != pairs[j - 1].value) {
+      context->conflict = true;
+      return false;
+    }
+  }
+  // The keys are packed at the front of the pair array: key i lands in pair i / 2,
+  // which has already been read.
+  uint64_t *uniqueKeys = (uint64_t *)pairs;
+  for (uint32_t i = 0; i < j; i++) {
+    uint32_t value = pairs[i].value;
+    uint64_t key = pairs[i].key;
+    uniqueValues[i] = value;
+    uniqueKeys[i] = key;
+  }
+  *keys = uniqueKeys;
+  *values = uniqueValues;
+  *size = j;
+  return true;
+}
+
+// Finds a seed for which the keys peel. On success, the first *stacksize entries
+// of context->reverseOrder hold the hashes in peeling order and context->reverseH
+// the slot index (0 to Arity - 1) that each hash owns; fingerprints must then be
+// assigned in reverse order. Duplicate keys are tolerated, as upstream.
+//
+// When 'values' is not NULL, values[i] travels with the hash of keys[i] through
+// the same XOR bookkeeping, and context->reverseValue holds the value of each
+// hash of context->reverseOrder. Duplicates cannot be dropped during peeling then,
+// since their values must be compared: the first attempt that fails or finds a
+// duplicate sorts copies of the pairs and removes the repeated ones, leaving
+// 'keys' in place. A key repeated with two different values fails construction,
+// with context->conflict set.
+static inline bool xfuse_fuse_peel(uint64_t *keys, const uint32_t *values, uint32_t size,
+                                   xfuse_fuse_shape_t *shape, xfuse_build_context_t *context,
+                                   uint32_t *stacksize) {
+  uint64_t rng_counter = 0x726b2b9d438b9d4d;
+  shape->Seed = binary_fuse_rng_splitmix64(&rng_counter);
+  uint32_t arity = shape->Arity;
+  uint32_t capacity = shape->ArrayLength;
+  uint32_t blockBits = 1;
+  while (((uint32_t)1 << blockBits) < shape->SegmentCount) {
+    blockBits += 1;
+  }
+  uint32_t block = ((uint32_t)1 << blockBits);
+
+  uint64_t *reverseOrder = (uint64_t *)xfuse_reserve(&context->reverseOrder, ((size_t)size + 1) * sizeof(uint64_t));
+  uint8_t *reverseH = (uint8_t *)xfuse_reserve(&context->reverseH, size);
+  uint32_t *alone = (uint32_t *)xfuse_reserve(&context->alone, (size_t)capacity * sizeof(uint32_t));
+  uint8_t *t2count = (uint8_t *)xfuse_reserve(&context->t2count, capacity);
+  uint64_t *t2hash = (uint64_t *)xfuse_reserve(&context->t2hash, (size_t)capacity * sizeof(uint64_t));
+  uint32_t *startPos = (uint32_t *)xfuse_reserve(&context->startPos, (size_t)block * sizeof(uint32_t));
+  if ((alone == NULL) || (t2count == NULL) || (reverseH == NULL) ||
+      (t2hash == NULL) || (reverseOrder == NULL) || (startPos == NULL)) {
+    return false;
+  }
+  uint32_t *reverseValue = NULL;
+  uint32_t *t2value = NULL;
+  bool deduplicated = false;
+  context->conflict = false;
+  if (values != NULL) {
+    reverseValue = (uint32_t *)xfuse_reserve(&context->reverseValue, (size_t)size * sizeof(uint32_t));
+    t2value = (uint32_t *)xfuse_reserve(&context->t2value, (size_t)capacity * sizeof(uint32_t));
+    if ((reverseValue == NULL) || (t2value == NULL)) {
+      return false;
+    }
+    memset(t2value, 0, (size_t)capacity * sizeof(uint32_t));
+  }
+  memset(reverseOrder, 0, (size_t)size * sizeof(uint64_t));
+  memset(t2count, 0, capacity);
+  memset(t2hash, 0, (size_t)capacity * sizeof(uint64_t));
+  reverseOrder[size] = 1;
+
+  uint32_t h[4];
+  for (int loop = 0; true; ++loop) {
+    if (loop + 1 > XOR_MAX_ITERATIONS) {
+      return false;
+    }
+
+    for (uint32_t i = 0; i < block; i++) {
+      // important : i * size would overflow as a 32-bit number in some
+      // cases.
+      startPos[i] = (uint32_t)(((uint64_t)i * size) >> blockBits);
+    }
+
+    uint64_t maskblock = block - 1;
+    for (uint32_t i = 0; i < size; i++) {
+      uint64_t hash = binary_fuse_murmur64(keys[i] + shape->Seed);
+      uint64_t segment_index = hash >> (64 - blockBits);
+      while (reverseOrder[startPos[segment_index]] != 0) {
+        segment_index++;
+        segment_index &= maskblock;
+      }
+      reverseOrder[startPos[segment_index]] = hash;
+      if (values != NULL) {
+        reverseValue[startPos[segment_index]] = values[i];
+      }
+      startPos[segment_index]++;
+    }
+    int error = 0;
+    uint32_t duplicates = 0;
+    for (uint32_t i = 0; i < size; i++) {
+      uint64_t hash = reverseOrder[i];
+      uint64_t all = ~(uint64_t)0;
+      for (uint32_t j = 0; j < arity; j++) {
+        h[j] = xfuse_fuse_hash(j, hash, shape);
+        t2count[h[j]] += 4;
+        t2count[h[j]] ^= (uint8_t)j;
+        t2hash[h[j]] ^= hash;
+        all &= t2hash[h[j]];
+        if (values != NULL) {
+          t2value[h[j]] ^= reverseValue[i];
+        }
+      }
+      if (all == 0) {
+        bool duplicate = false;
+        for (uint32_t j = 0; j < arity; j++) {
+          duplicate |= (t2hash[h[j]] == 0) && (t2count[h[j]] == 8);
+        }
+        if (duplicate) {
+          duplicates += 1;
+          for (uint32_t j = 0; j < arity; j++) {
+            t2count[h[j]] -= 4;
+            t2count[h[j]] ^= (uint8_t)j;
+            t2hash[h[j]] ^= hash;
+            if (values != NULL) {
+              t2value[h[j]] ^= reverseValue[i];
+            }
+          }
+        }
+      }
+      for (uint32_t j = 0; j < arity; j++) {
+        error = (t2count[h[j]] < 4) ? 1 : error;
+      }
+    }
+    if (error) {
+      if (values != NULL && !deduplicated) {
+        if (!xfuse_sort_and_remove_dup_pairs(&keys, &values, &size, context)) {
+          return false;
+        }
+        deduplicated = true;
+        reverseOrder[size] = 1;
+      }
+      memset(reverseOrder, 0, sizeof(uint64_t) * size);
+      memset(t2count, 0, capacity);
+      memset(t2hash, 0, sizeof(uint64_t) * capacity);
+      if (values != NULL) {
+        memset(t2value, 0, sizeof(uint32_t) * capacity);
+      }
+      shape->Seed = binary_fuse_rng_splitmix64(&rng_counter);
+      continue;
+    }
+
+    // End of key addition
+    uint32_t Qsize = 0;
+    // Add sets with one key to the queue.
+    for (uint32_t i = 0; i < capacity; i++) {
+      alone[Qsize] = i;
+      Qsize += ((t2count[i] >> 2U) == 1) ? 1U : 0U;
+    }
+    uint32_t stack = 0;
+    while (Qsize > 0) {
+      Qsize--;
+      uint32_t index = alone[Qsize];
+      if ((t2count[index] >> 2U) == 1) {
+        uint64_t hash = t2hash[index];
+        uint8_t found = t2count[index] & 3U;
+        reverseH[stack] = found;
+        reverseOrder[stack] = hash;
+        uint32_t value = 0;
+        if (values != NULL) {
+          value = t2value[index];
+          reverseValue[stack] = value;
+        }
+        stack++;
+        for (uint32_t k = 1; k < arity; k++) {
+          uint32_t j = (found + k) % arity;
+          uint32_t other_index = xfuse_fuse_hash(j, hash, shape);
+          alone[Qsize] = other_index;
+          Qsize += ((t2count[other_index] >> 2U) == 2 ? 1U : 0U);
+          t2count[other_index] -= 4;
+          t2count[other_index] ^= (uint8_t)j;
+          t2hash[other_index] ^= hash;
+          if (values != NULL) {
+            t2value[other_index] ^= value;
+          }
+        }
+      }
+    }
+    if (stack + duplicates == size && (values == NULL || duplicates == 0)) {
+      *stacksize = stack;
+      context->attempts = (uint32_t)loop + 1;
+      return true;
+    }
+    if (duplicates > 0 && values == NULL) {
+      size = (uint32_t)binary_fuse_sort_and_remove_dup(keys, size);
+    }
+    if (values != NULL && !deduplicated) {
+      if (!xfuse_sort_and_remove_dup_pairs(&keys, &values, &size, context)) {
+        return false;
+      }
+      deduplicated = true;
+      reverseOrder[size] = 1;
+    }
+    memset(reverseOrder, 0, sizeof(uint64_t) * size);
+    memset(t2count, 0, capacity);
+    memset(t2hash, 0, sizeof(uint64_t) * capacity);
+    if (values != NULL) {
+      memset(t2value, 0, sizeof(uint32_t) * capacity);
+    }
+    shape->Seed = binary_fuse_rng_splitmix64(&rng_counter);
+  }
+}
+
+// Defines binary_<fuse>_populate_context(keys, size, filter, context) for a
+// filter type binary_<fuse>_t with 'ftype' fingerprints and the given arity.
+#define XFUSE_FUSE_POPULATE_CONTEXT(fuse, ftype, arity) \
+static inline bool binary_ ## fuse ## _populate_context(uint64_t *keys, uint32_t size, \
+    binary_ ## fuse ## _t *filter, xfuse_build_context_t *context) { \
+  if (size != filter->Size) { \
+    return false; \
+  } \
+  xfuse_fuse_shape_t shape = {0, (arity), filter->SegmentLength, filter->SegmentLengthMask, \
+                              filter->SegmentCount, filter->SegmentCountLength, filter->ArrayLength}; \
+  uint32_t stacksize; \
+  if (!xfuse_fuse_peel(keys, NULL, size, &shape, context, &stacksize)) { \
+    return false; \
+  } \
+  filter->Seed = shape.Seed; \
+  memset(filter->Fingerprints, 0, (size_t)filter->ArrayLength * sizeof(ftype)); \
+  const uint64_t *reverseOrder = (const uint64_t *)context->reverseOrder.data; \
+  const uint8_t *reverseH = (const uint8_t *)context->reverseH.data; \
+  uint32_t h[4]; \
+  for (uint32_t i = stacksize - 1; i < stacksize; i--) { \
+    uint64_t hash = reverseOrder[i]; \
+    uint32_t x = (uint32_t)binary_ ## fuse ## _fingerprint(hash); \
+    uint8_t found = reverseH[i]; \
+    for (uint32_t j = 0; j < (arity); j++) { \
+      h[j] = xfuse_fuse_hash(j, hash, &shape); \
+      if (j != found) { \
+        x ^= filter->Fingerprints[h[j]]; \
+      } \
+    } \
+    filter->Fingerprints[h[found]] = (ftype)x; \
+  } \
+  return true; \
+}
+
+// 4-wise binary fuse filters use the structs, fingerprints and serialized formats
+// of the 3-wise ones; only the number of slots per key differs.
+typedef binary_fuse8_t binary_fuse8_4wise_t;
+typedef binary_fuse16_t binary_fuse16_4wise_t;
+
+static inline uint8_t binary_fuse8_4wise_fingerprint(uint64_t hash) {
+  return binary_fuse8_fingerprint(hash);
+}
+
+static inline uint16_t binary_fuse16_4wise_fingerprint(uint64_t hash) {
+  return binary_fuse16_fingerprint(hash);
+}
+
+XFUSE_FUSE_POPULATE_CONTEXT(fuse8, uint8_t, 3)
+XFUSE_FUSE_POPULATE_CONTEXT(fuse16, uint16_t, 3)
+XFUSE_FUSE_POPULATE_CONTEXT(fuse32, uint32_t, 3)
+XFUSE_FUSE_POPULATE_CONTEXT(fuse8_4wise, uint8_t, 4)
+XFUSE_FUSE_POPULATE_CONTEXT(fuse16_4wise, uint16_t, 4)
+
+#undef XFUSE_FUSE_POPULATE_CONTEXT
+
+// Builds a static function over bit-packed slots: for each key, the fingerprint
+// of its hash XOR values[i] is split across its three slots, so that
+// binary_fuse_bits_retrieve(keys[i], filter) returns values[i] & filter->Mask.
+// With values == NULL, this is the filter of XFUSE_FUSE_POPULATE_CONTEXT.
+static inline bool binary_fuse_bits_populate_values_context(uint64_t *keys, const uint32_t *values,
+    uint32_t size, binary_fuse_bits_t *filter, xfuse_build_context_t *context) {
+  if (size != filter->Size) {
+    return false;
+  }
+  xfuse_fuse_shape_t shape = {0, 3, filter->SegmentLength, filter->SegmentLengthMask,
+                              filter->SegmentCount, filter->SegmentCountLength, filter->ArrayLength};
+  uint32_t stacksize;
+  if (!xfuse_fuse_peel(keys, values, size, &shape, context, &stacksize)) {
+    return false;
+  }
+  filter->Seed = shape.Seed;
+  const uint64_t *reverseOrder = (const uint64_t *)context->reverseOrder.data;
+  const uint8_t *reverseH = (const uint8_t *)context->reverseH.data;
+  const uint32_t *reverseValue = (const uint32_t *)context->reverseValue.data;
+  uint32_t h[3];
+  for (uint32_t i = stacksize - 1; i < stacksize; i--) {
+    uint64_t hash = reverseOrder[i];
+    uint32_t x = binary_fuse_bits_fingerprint(hash);
+    if (values != NULL) {
+      x ^= reverseValue[i];
+    }
+    uint8_t found = reverseH[i];
+    for (uint32_t j = 0; j < 3; j++) {
+      h[j] = xfuse_fuse_hash(j, hash, &shape);
+      if (j != found) {
+        x ^= binary_fuse_bits_get(filter, h[j]);
+      }
+    }
+    binary_fuse_bits_set(filter, h[found], x);
+  }
+  return true;
+}
+
+// As XFUSE_FUSE_POPULATE_CONTEXT, for bit-packed fingerprints.
+static inline bool binary_fuse_bits_populate_context(uint64_t *keys, uint32_t size,
+    binary_fuse_bits_t *filter, xfuse_build_context_t *context) {
+  return binary_fuse_bits_populate_values_context(keys, NULL, size, filter, context);
+}
+
+//////////////////
+// xor
+//////////////////
+
+static inline uint32_t xfuse_xor_hash(uint32_t index, uint64_t hash, uint64_t blockLength) {
+  uint32_t r = (uint32_t)xor_rotl64(hash, 21 * index);
+  return xor_reduce(r, (uint32_t)blockLength);
+}
+
+// Finds a seed for which the keys peel, as xor8_populate. On success, the first
+// *size entries of context->stack hold the peeled keys in order, with their
+// position in the fingerprint array; *size may shrink if duplicates were removed.
+static inline bool xfuse_xor_peel(uint64_t *keys, uint32_t *size, uint64_t blockLength,
+                                  uint64_t *seed, xfuse_build_context_t *context) {
+  if (*size == 0) {
+    return false;
+  }
+  uint64_t rng_counter = 1;
+  *seed = xor_rng_splitmix64(&rng_counter);
+  size_t arrayLength = (size_t)blockLength * 3;
+  xor_xorset_t *sets = (xor_xorset_t *)xfuse_reserve(&context->sets, arrayLength * sizeof(xor_xorset_t));
+  xor_keyindex_t *Q = (xor_keyindex_t *)xfuse_reserve(&context->queue, arrayLength * sizeof(xor_keyindex_t));
+  xor_keyindex_t *stack = (xor_keyindex_t *)xfuse_reserve(&context->stack, (size_t)*size * sizeof(xor_keyindex_t));
+  if ((sets == NULL) || (Q == NULL) || (stack == NULL)) {
+    return false;
+  }
+  xor_xorset_t *setsb[3] = {sets, sets + blockLength, sets + 2 * blockLength};
+  xor_keyindex_t *Qb[3] = {Q, Q + blockLength, Q + 2 * blockLength};
+
+  int iterations = 0;
+  while (true) {
+    iterations++;
+    if (iterations == XOR_SORT_ITERATIONS) {
+      *size = (uint32_t)xor_sort_and_remove_dup(keys, *size);
+    }
+    if (iterations > XOR_MAX_ITERATIONS) {
+      return false;
+    }
+
+    memset(sets, 0, sizeof(xor_xorset_t) * arrayLength);
+    for (size_t i = 0; i < *size; i++) {
+      uint64_t hash = xor_mix_split(keys[i], *seed);
+      for (uint32_t b = 0; b < 3; b++) {
+        uint32_t index = xfuse_xor_hash(b, hash, blockLength);
+        setsb[b][index].xormask ^= hash;
+        setsb[b][index].count++;
+      }
+    }
+    // scan for values with a count of one
+    size_t Qsize[3] = {0, 0, 0};
+    for (uint32_t b = 0; b < 3; b++) {
+      for (size_t i = 0; i < blockLength; i++) {
+        if (setsb[b][i].count == 1) {
+          Qb[b][Qsize[b]].index = (uint32_t)i;
+          Qb[b][Qsize[b]].hash = setsb[b][i].xormask;
+          Qsize[b]++;
+        }
+      }
+    }
+
+    size_t stack_size = 0;
+    while (Qsize[0] + Qsize[1] + Qsize[2] > 0) {
+      for (uint32_t b = 0; b < 3; b++) {
+        while (Qsize[b] > 0) {
+          xor_keyindex_t keyindex = Qb[b][--Qsize[b]];
+          if (setsb[b][keyindex.index].count == 0) {
+            continue;
+          }
+          uint64_t hash = keyindex.hash;
+          keyindex.index += b * (uint32_t)blockLength;
+          stack[stack_size] = keyindex;
+          stack_size++;
+          for (uint32_t o = 0; o < 3; o++) {
+            if (o == b) {
+              continue;
+            }
+            uint32_t index = xfuse_xor_hash(o, hash, blockLength);
+            setsb[o][index].xormask ^= hash;
+            setsb[o][index].count--;
+            if (setsb[o][index].count == 1) {
+              Qb[o][Qsize[o]].index = index;
+              Qb[o][Qsize[o]].hash = setsb[o][index].xormask;
+              Qsize[o]++;
+            }
+          }
+        }
+      }
+    }
+    if (stack_size == *size) {
+      context->attempts = (uint32_t)iterations;
+      return true;
+    }
+    *seed = xor_rng_splitmix64(&rng_counter);
+  }
+}
+
+// Defines xor<xbits>_populate_context(keys, size, filter, context).
+#define XFUSE_XOR_POPULATE_CONTEXT(xbits, ftype) \
+static inline bool xor ## xbits ## _populate_context(uint64_t *keys, uint32_t size, \
+    xor ## xbits ## _t *filter, xfuse_build_context_t *context) { \
+  uint64_t blockLength = filter->blockLength; \
+  if (!xfuse_xor_peel(keys, &size, blockLength, &filter->seed, context)) { \
+    return false; \
+  } \
+  memset(filter->fingerprints, 0, (size_t)(3 * blockLength) * sizeof(ftype)); \
+  const xor_keyindex_t *stack = (const xor_keyindex_t *)context->stack.data; \
+  for (size_t i = size; i > 0; i--) { \
+    xor_keyindex_t ki = stack[i - 1]; \
+    uint32_t owner = (uint32_t)(ki.index / blockLength); \
+    uint32_t val = (uint32_t)xor_fingerprint(ki.hash); \
+    for (uint32_t b = 0; b < 3; b++) { \
+      if (b != owner) { \
+        val ^= filter->fingerprints[b * blockLength + xfuse_xor_hash(b, ki.hash, blockLength)]; \
+      } \
+    } \
+    filter->fingerprints[ki.index] = (ftype)val; \
+  } \
+  return true; \
+}
+
+XFUSE_XOR_POPULATE_CONTEXT(8, uint8_t)
+XFUSE_XOR_POPULATE_CONTEXT(16, uint16_t)
+
+#undef XFUSE_XOR_POPULATE_CONTEXT
+
+#endif
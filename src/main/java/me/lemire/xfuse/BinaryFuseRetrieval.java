@@ -0,0 +1,238 @@
+package me.lemire.xfuse;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.FunctionDescriptor;
+import java.lang.foreign.Linker;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.lang.invoke.MethodHandle;
+
+/**
+ * A static function from 64-bit keys to values of 1 to 32 bits, built like a
+ * {@link XorFilter.BinaryFuseFilter}.
+ *
+ * A binary fuse filter fills the three slots of each key so that their XOR is the
+ * fingerprint of the key. Here the XOR of the slots is the fingerprint XOR the value of
+ * the key, so a query, the same three loads as a filter query, returns the value. The
+ * slots are bit-packed to the value width: about 1.13 bits per key and per value bit,
+ * 9 bits per key for 8-bit values. The keys themselves are not stored, and a key outside
+ * the build set gets an arbitrary value; pair the function with a filter when membership
+ * matters.
+ *
+ * A key may be repeated as long as every copy has the same value: once duplicates show
+ * up, construction sorts the pairs and keeps one of each. A function is immutable once
+ * built and may be queried from any thread that its arena allows.
+ */
+public final class BinaryFuseRetrieval implements AutoCloseable {
+    public static final int MAX_VALUE_BITS = 32;
+
+    private static final MethodHandle populate_values = XorFilter.downcall(
+        "xfuse_binary_fuse_bits_populate_values",
+        FunctionDescriptor.of(ValueLayout.JAVA_INT, ValueLayout.ADDRESS, ValueLayout.ADDRESS,
+            ValueLayout.JAVA_INT, ValueLayout.ADDRESS)
+    );
+    private static final MethodHandle populate_values_heap = XorFilter.downcall(
+        "xfuse_binary_fuse_bits_populate_values",
+        FunctionDescriptor.of(ValueLayout.JAVA_INT, ValueLayout.ADDRESS, ValueLayout.ADDRESS,
+            ValueLayout.JAVA_INT, ValueLayout.ADDRESS),
+        Linker.Option.critical(true)
+    );
+    private static final MethodHandle retrieve = XorFilter.downcall(
+        "xfuse_binary_fuse_bits_retrieve",
+        FunctionDescriptor.of(ValueLayout.JAVA_INT, ValueLayout.JAVA_LONG, ValueLayout.ADDRESS),
+        Linker.Option.critical(false)
+    );
+    private static final MethodHandle retrieve_batch = XorFilter.downcall(
+        "xfuse_binary_fuse_bits_retrieve_batch",
+        FunctionDescriptor.ofVoid(ValueLayout.ADDRESS, ValueLayout.JAVA_LONG, ValueLayout.ADDRESS,
+            ValueLayout.ADDRESS)
+    );
+    private static final MethodHandle retrieve_batch_heap = XorFilter.downcall(
+        "xfuse_binary_fuse_bits_retrieve_batch",
+        FunctionDescriptor.ofVoid(ValueLayout.ADDRESS, ValueLayout.JAVA_LONG, ValueLayout.ADDRESS,
+            ValueLayout.ADDRESS),
+        Linker.Option.critical(true)
+    );
+
+    private final Arena arena;
+    private final MemorySegment filterSegment;
+    private final int valueBits;
+    private XorFilter.QueryEngine queryEngine = XorFilter.QueryEngine.NATIVE;
+    private XorFilter.BinaryFuseBitsProbe probe;
+
+    private BinaryFuseRetrieval(Arena arena, int valueBits) {
+        this.arena = arena;
+        this.valueBits = valueBits;
+        this.filterSegment = arena.allocate(XorFilter.BINARY_FUSE_BITS_LAYOUT);
+    }
+
+    /**
+     * Builds a function with 8-bit values; {@code (byte) get(key)} is the value of
+     * {@code key}.
+     */
+    public static BinaryFuseRetrieval build(Arena arena, long[] keys, byte[] values) throws Throwable {
+        checkLengths(keys, values.length);
+        int[] widened = new int[values.length];
+        for (int i = 0; i < values.length; i++) {
+            widened[i] = Byte.toUnsignedInt(values[i]);
+        }
+        return build(arena, keys, widened, 8);
+    }
+
+    /**
+     * Builds a function with 16-bit values; {@code (short) get(key)} is the value of
+     * {@code key}.
+     */
+    public static BinaryFuseRetrieval build(Arena arena, long[] keys, short[] values) throws Throwable {
+        checkLengths(keys, values.length);
+        int[] widened = new int[values.length];
+        for (int i = 0; i < values.length; i++) {
+            widened[i] = Short.toUnsignedInt(values[i]);
+        }
+        return build(arena, keys, widened, 16);
+    }
+
+    /**
+     * Builds a function with {@code valueBits}-bit values.
+     *
+     * @throws IllegalArgumentException if a value does not fit in {@code valueBits} bits, or
+     *         if a key is repeated with different values
+     */
+    public static BinaryFuseRetrieval build(Arena arena, long[] keys, int[] values, int valueBits) throws Throwable {
+        checkLengths(keys, values.length);
+        checkValueBits(valueBits);
+        for (int i = 0; i < values.length; i++) {
+            if (valueBits < MAX_VALUE_BITS && values[i] >>> valueBits != 0) {
+                throw new IllegalArgumentException("Value " + Integer.toUnsignedString(values[i]) + " at index " + i
+                    + " does not fit in " + valueBits + " bits");
+            }
+        }
+        try (Arena tempArena = Arena.ofConfined()) {
+            MemorySegment keysSegment = tempArena.allocateFrom(ValueLayout.JAVA_LONG, keys);
+            MemorySegment valuesSegment = tempArena.allocateFrom(ValueLayout.JAVA_INT, values);
+            return build(arena, keysSegment, valuesSegment, keys.length, valueBits);
+        }
+    }
+
+    /**
+     * Builds a function from {@code count} keys and as many {@code int} values, of which
+     * only the low {@code valueBits} bits are kept. Neither segment is modified.
+     *
+     * @throws IllegalArgumentException if a key is repeated with different values
+     * @throws IllegalStateException if no function could be built
+     */
+    public static BinaryFuseRetrieval build(Arena arena, MemorySegment keys, MemorySegment values, long count,
+                                            int valueBits) throws Throwable {
+        XorFilter.checkKeys(keys, count);
+        checkValueBits(valueBits);
+        if (values.byteSize() < count * 4) {
+            throw new IndexOutOfBoundsException("value segment holds fewer than " + count + " values");
+        }
+        BinaryFuseRetrieval retrieval = new BinaryFuseRetrieval(arena, valueBits);
+        if (!(boolean) XorFilter.BinaryFuseFilter.HANDLES.allocate.invokeExact((int) count, valueBits,
+                retrieval.filterSegment)) {
+            retrieval.close();
+            throw new IllegalStateException("Failed to allocate a retrieval structure for " + count + " keys");
+        }
+        int status = keys.isNative() && values.isNative()
+            ? (int) populate_values.invokeExact(keys, values, (int) count, retrieval.filterSegment)
+            : (int) populate_values_heap.invokeExact(keys, values, (int) count, retrieval.filterSegment);
+        if (status != 1) {
+            retrieval.close();
+            if (status < 0) {
+                throw new IllegalArgumentException("A key is repeated with different values");
+            }
+            throw new IllegalStateException("Failed to build a retrieval structure for " + count + " keys");
+        }
+        return retrieval;
+    }
+
+    private static void checkLengths(long[] keys, int valueCount) {
+        if (keys.length != valueCount) {
+            throw new IllegalArgumentException(keys.length + " keys but " + valueCount + " values");
+        }
+    }
+
+    private static void checkValueBits(int valueBits) {
+        if (valueBits < 1 || valueBits > MAX_VALUE_BITS) {
+            throw new IllegalArgumentException("valueBits must be between 1 and " + MAX_VALUE_BITS + ": " + valueBits);
+        }
+    }
+
+    public int valueBits() {
+        return valueBits;
+    }
+
+    /**
+     * The value of {@code key}, in the low {@link #valueBits()} bits; arbitrary if
+     * {@code key} was not among the keys the function was built from.
+     */
+    public int get(long key) throws Throwable {
+        XorFilter.BinaryFuseBitsProbe p = probe;
+        if (p != null) {
+            return p.retrieve(key);
+        }
+        return (int) retrieve.invokeExact(key, filterSegment);
+    }
+
+    /**
+     * Writes the value of each of the {@code count} keys as an {@code int} to
+     * {@code valuesOut}.
+     */
+    public void getBatch(MemorySegment keys, long count, MemorySegment valuesOut) throws Throwable {
+        if (count < 0 || keys.byteSize() < count * 8) {
+            throw new IndexOutOfBoundsException("key segment holds fewer than " + count + " keys");
+        }
+        if (valuesOut.byteSize() < count * 4) {
+            throw new IndexOutOfBoundsException("value segment too small for " + count + " keys");
+        }
+        XorFilter.BinaryFuseBitsProbe p = probe;
+        if (p != null) {
+            for (long i = 0; i < count; i++) {
+                valuesOut.setAtIndex(ValueLayout.JAVA_INT_UNALIGNED, i,
+                    p.retrieve(keys.getAtIndex(ValueLayout.JAVA_LONG_UNALIGNED, i)));
+            }
+            return;
+        }
+        if (keys.isNative() && valuesOut.isNative()) {
+            retrieve_batch.invokeExact(keys, count, valuesOut, filterSegment);
+            return;
+        }
+        // a critical call, needed for heap segments, holds off the GC until it returns
+        for (long start = 0; start < count; start += XorFilter.BATCH_CHUNK) {
+            long n = Math.min(XorFilter.BATCH_CHUNK, count - start);
+            retrieve_batch_heap.invokeExact(keys.asSlice(start * 8, n * 8), n, valuesOut.asSlice(start * 4, n * 4),
+                filterSegment);
+        }
+    }
+
+    public long sizeInBytes() throws Throwable {
+        return (long) XorFilter.BinaryFuseFilter.HANDLES.size.invokeExact(filterSegment);
+    }
+
+    public XorFilter.QueryEngine getQueryEngine() {
+        return queryEngine;
+    }
+
+    /**
+     * Selects how queries are answered, as for the filters; the vector engine is not
+     * supported.
+     */
+    public void setQueryEngine(XorFilter.QueryEngine engine) {
+        if (engine == XorFilter.QueryEngine.VECTOR) {
+            throw new UnsupportedOperationException(engine + " query engine not supported by " + getClass().getSimpleName());
+        }
+        this.queryEngine = engine;
+        probe = engine != XorFilter.QueryEngine.NATIVE ? new XorFilter.BinaryFuseBitsProbe(filterSegment, arena) : null;
+    }
+
+    @Override
+    public void close() {
+        probe = null;
+        try {
+            XorFilter.BinaryFuseFilter.HANDLES.free.invokeExact(filterSegment);
+        } catch (Throwable e) {
+            throw new RuntimeException("Failed to free retrieval structure", e);
+        }
+    }
+}
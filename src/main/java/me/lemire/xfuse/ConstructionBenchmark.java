@@ -0,0 +1,81 @@
+package me.lemire.xfuse;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the time to allocate and populate xor filters with the plain and the
+ * buffered construction algorithms. The largest size needs about 7 GB of native memory.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ConstructionBenchmark {
+
+    @Param({"1000000", "10000000", "100000000"})
+    private int size;
+
+    @Param({"XOR8", "XOR16"})
+    private XorFilter.FilterType type;
+
+    @Param({"PLAIN", "BUFFERED"})
+    private XorFilter.PopulateMode mode;
+
+    private Arena arena;
+    private MemorySegment keys;
+
+    @Setup
+    public void setup() {
+        arena = Arena.ofConfined();
+        keys = arena.allocate(ValueLayout.JAVA_LONG, size);
+        SplittableRandom random = new SplittableRandom(1234);
+        for (long i = 0; i < size; i++) {
+            keys.setAtIndex(ValueLayout.JAVA_LONG, i, random.nextLong());
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (arena != null) {
+            arena.close();
+        }
+    }
+
+    @Benchmark
+    public long benchmarkPopulate() throws Throwable {
+        try (Arena filterArena = Arena.ofConfined()) {
+            XorFilter.XorFilterInterface filter = type.newFilter(filterArena);
+            if (filter instanceof XorFilter.Xor8Filter xor8) {
+                xor8.setPopulateMode(mode);
+            } else if (filter instanceof XorFilter.Xor16Filter xor16) {
+                xor16.setPopulateMode(mode);
+            }
+            try (filter) {
+                if (!filter.allocate(size) || !filter.populate(keys, size)) {
+                    throw new RuntimeException("Failed to build filter");
+                }
+                return filter.sizeInBytes();
+            }
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options opt = new OptionsBuilder()
+                .include(ConstructionBenchmark.class.getSimpleName())
+                .build();
+
+        new Runner(opt).run();
+    }
+}
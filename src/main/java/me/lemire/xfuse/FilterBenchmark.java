@@ -8,110 +8,234 @@ import org.openjdk.jmh.runner.options.OptionsBuilder;
 import org.openjdk.jmh.infra.Blackhole;
 
 import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.util.SplittableRandom;
 import java.util.concurrent.TimeUnit;
 
-@BenchmarkMode(Mode.AverageTime)
-@OutputTimeUnit(TimeUnit.NANOSECONDS)
+/**
+ * Query and construction benchmarks over all filter types.
+ *
+ * Parameters: {@code type} (filter type), {@code size} (number of keys), {@code order}
+ * (RANDOM or SEQUENTIAL even keys), {@code storage} (fingerprints in native {@code malloc}
+ * memory, or in an arena on huge pages: see {@link XorFilter#allocateFingerprints}; the gap
+ * grows with the filter, as random probes outrun the TLB reach of small pages) and, for
+ * queries, {@code hitPercent} (share of queries that are keys of the set). Queries report
+ * operations per second, summed over threads;
+ * {@code containsAllThreads} runs one query thread per core against a single filter.
+ * Narrow the matrix with JMH options, for example {@code -p type=BINARY_FUSE8 -p size=1000000}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
 @Warmup(iterations = 3, time = 1, timeUnit = TimeUnit.SECONDS)
 @Measurement(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
 @Fork(1)
-@State(Scope.Benchmark)
 public class FilterBenchmark {
+    // Queries issued per benchmark invocation, whatever the size of the set
+    static final int QUERIES = 1 << 20;
 
-    private XorFilter.BinaryFuse8Filter filter;
-    private Arena arena;
-    private long[] testKeys;
-    private final int NUM_KEYS = 1000000;
-
-    @Setup
-    public void setup() {
-        // Create 1000,000 keys
-        testKeys = new long[NUM_KEYS];
-        for (int i = 0; i < testKeys.length; i++) {
-            testKeys[i] = i * 2; // even numbers
-        }
+    public enum KeyOrder { RANDOM, SEQUENTIAL }
 
-        arena = Arena.ofConfined();
-        filter = new XorFilter.BinaryFuse8Filter(arena);
+    public enum FingerprintStorage { MALLOC, HUGE_PAGES }
 
-        try {
-            if (!filter.allocate(testKeys.length)) {
-                throw new RuntimeException("Failed to allocate filter");
-            }
+    /**
+     * The keys of the set, in a native segment.
+     */
+    @State(Scope.Benchmark)
+    public static class KeySet {
+        @Param({"XOR8", "XOR16", "BINARY_FUSE8", "BINARY_FUSE16", "BINARY_FUSE8_4WISE", "BINARY_FUSE16_4WISE", "BINARY_FUSE32",
+            "BINARY_FUSE_BITS"})
+        XorFilter.FilterType type;
+
+        @Param({"10000", "1000000", "10000000", "100000000"})
+        int size;
 
-            if (!filter.populate(testKeys)) {
-                throw new RuntimeException("Failed to populate filter");
+        @Param({"RANDOM", "SEQUENTIAL"})
+        KeyOrder order;
+
+        Arena arena;
+        MemorySegment keys;
+
+        @Setup
+        public void setup() {
+            arena = Arena.ofShared();
+            keys = arena.allocate(ValueLayout.JAVA_LONG, size);
+            SplittableRandom random = new SplittableRandom(1234);
+            for (long i = 0; i < size; i++) {
+                keys.setAtIndex(ValueLayout.JAVA_LONG, i, order == KeyOrder.RANDOM ? random.nextLong() : i * 2);
             }
-        } catch (Throwable e) {
-            throw new RuntimeException(e);
+        }
+
+        // A key that is not in the set, barring a 64-bit collision for random keys
+        long absentKey(SplittableRandom random) {
+            return order == KeyOrder.RANDOM ? random.nextLong() : random.nextLong(size) * 2 + 1;
+        }
+
+        @TearDown
+        public void tearDown() {
+            arena.close();
         }
     }
 
-    @TearDown
-    public void tearDown() {
-        if (filter != null) {
-            filter.close();
+    /**
+     * A filter built from the key set, shared by all benchmark threads.
+     */
+    @State(Scope.Benchmark)
+    public static class FilterState {
+        @Param({"MALLOC", "HUGE_PAGES"})
+        FingerprintStorage storage;
+
+        Arena arena;
+        XorFilter.XorFilterInterface filter;
+
+        @Setup
+        public void setup(KeySet keySet) throws Throwable {
+            arena = Arena.ofShared();
+            filter = keySet.type.newFilter(arena);
+            try (Arena tempArena = Arena.ofConfined()) {
+                MemorySegment copy = tempArena.allocate(ValueLayout.JAVA_LONG, keySet.size);
+                MemorySegment.copy(keySet.keys, 0, copy, 0, copy.byteSize());
+                boolean allocated;
+                if (storage == FingerprintStorage.HUGE_PAGES) {
+                    long bytes = filter.fingerprintBytes(keySet.size);
+                    XorFilter.FingerprintMemory memory = XorFilter.allocateFingerprintMemory(arena, bytes);
+                    if (!memory.hugePages() && bytes >= XorFilter.HUGE_PAGE_SIZE) {
+                        System.err.println("Huge pages unavailable: this HUGE_PAGES run uses small pages");
+                    }
+                    allocated = filter.allocate(keySet.size, memory.segment());
+                } else {
+                    allocated = filter.allocate(keySet.size);
+                }
+                if (!allocated || !filter.populate(copy, keySet.size)) {
+                    throw new RuntimeException("Failed to build filter");
+                }
+            }
         }
-        if (arena != null) {
+
+        @TearDown
+        public void tearDown() {
+            filter.close();
             arena.close();
         }
     }
 
-@Benchmark
-@OperationsPerInvocation(NUM_KEYS)
-public void benchmarkContainsExisting(Blackhole blackhole) throws Throwable {
-    // Query existing keys
-    for (long key : testKeys) {
-        if(!filter.contains(key)) {
-            throw new RuntimeException("Key should exist: " + key);
+    /**
+     * Each thread's own query stream: hits drawn at random from the set, mixed with misses.
+     */
+    @State(Scope.Thread)
+    public static class Queries {
+        @Param({"0", "50", "100"})
+        int hitPercent;
+
+        long[] queries;
+        long[] bitmap;
+        int[] selection;
+        int expectedHits;
+
+        @Setup
+        public void setup(KeySet keySet) {
+            SplittableRandom random = new SplittableRandom(Thread.currentThread().threadId());
+            queries = new long[QUERIES];
+            bitmap = new long[QUERIES / 64];
+            selection = new int[QUERIES];
+            for (int i = 0; i < QUERIES; i++) {
+                if (random.nextInt(100) < hitPercent) {
+                    queries[i] = keySet.keys.getAtIndex(ValueLayout.JAVA_LONG, random.nextInt(keySet.size));
+                    expectedHits++;
+                } else {
+                    queries[i] = keySet.absentKey(random);
+                }
+            }
         }
     }
-}
 
-    @Benchmark
-    @OperationsPerInvocation(NUM_KEYS)
-    public void benchmarkContainsNonExisting(Blackhole blackhole) throws Throwable {
-        // Query non-existing keys (odd numbers)
-        int fp = 0;
-        for (int i = 0; i < testKeys.length; i++) {
-            long key = i * 2 + 1; // odd numbers
-            if(filter.contains(key)) {
-                fp++;
+    private static int containsAll(XorFilter.XorFilterInterface filter, Queries q) throws Throwable {
+        int hits = 0;
+        for (long key : q.queries) {
+            if (filter.contains(key)) {
+                hits++;
             }
         }
-        if(fp > 10000) {
-            throw new RuntimeException("Too many false positives: " + fp);
+        if (hits < q.expectedHits) {
+            throw new RuntimeException("Missing keys: " + (q.expectedHits - hits));
         }
+        return hits;
     }
 
     @Benchmark
-    @BenchmarkMode(Mode.Throughput)
-    @OutputTimeUnit(TimeUnit.SECONDS)
-    @OperationsPerInvocation(NUM_KEYS)
-    public void benchmarkContainsExistingThroughput(Blackhole blackhole) throws Throwable {
-        // Query existing keys
-        for (long key : testKeys) {
-            if(!filter.contains(key)) {
-                throw new RuntimeException("Key should exist: " + key);
-            }
+    @OperationsPerInvocation(QUERIES)
+    public int contains(FilterState state, Queries q) throws Throwable {
+        return containsAll(state.filter, q);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    @OperationsPerInvocation(QUERIES)
+    public int containsAllThreads(FilterState state, Queries q) throws Throwable {
+        return containsAll(state.filter, q);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(QUERIES)
+    public void containsBatch(FilterState state, Queries q, Blackhole blackhole) throws Throwable {
+        long hits = state.filter.containsBatch(q.queries, q.bitmap);
+        if (hits < q.expectedHits) {
+            throw new RuntimeException("Missing keys: " + (q.expectedHits - hits));
         }
+        blackhole.consume(q.bitmap);
     }
 
     @Benchmark
-    @BenchmarkMode(Mode.Throughput)
-    @OutputTimeUnit(TimeUnit.SECONDS)
-    @OperationsPerInvocation(NUM_KEYS)
-    public void benchmarkContainsNonExistingThroughput(Blackhole blackhole) throws Throwable {
-        // Query non-existing keys (odd numbers)
-        int fp = 0;
-        for (int i = 0; i < testKeys.length; i++) {
-            long key = i * 2 + 1; // odd numbers
-            if(filter.contains(key)) {
-                fp++;
-            }
+    @OperationsPerInvocation(QUERIES)
+    public void filterSelect(FilterState state, Queries q, Blackhole blackhole) throws Throwable {
+        int selected = state.filter.filterSelect(q.queries, q.selection);
+        if (selected < q.expectedHits) {
+            throw new RuntimeException("Missing keys: " + (q.expectedHits - selected));
         }
-        if(fp > 10000) {
-            throw new RuntimeException("Too many false positives: " + fp);
+        blackhole.consume(q.selection);
+    }
+
+    /**
+     * Scratch copy of the keys for construction, since populate may reorder them.
+     */
+    @State(Scope.Thread)
+    public static class ConstructionState {
+        Arena arena;
+        MemorySegment scratch;
+
+        @Setup
+        public void setup(KeySet keySet) {
+            arena = Arena.ofShared();
+            scratch = arena.allocate(ValueLayout.JAVA_LONG, keySet.size);
+        }
+
+        @TearDown
+        public void tearDown() {
+            arena.close();
+        }
+
+        @Setup(Level.Invocation)
+        public void copyKeys(KeySet keySet) {
+            MemorySegment.copy(keySet.keys, 0, scratch, 0, scratch.byteSize());
+        }
+    }
+
+    /**
+     * Time to allocate and populate a filter. Run with {@code -prof gc} to see the
+     * allocation rate, which should be close to zero: keys and filters live off-heap.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 2)
+    @Measurement(iterations = 5)
+    public long construction(KeySet keySet, ConstructionState state) throws Throwable {
+        try (Arena filterArena = Arena.ofConfined();
+             XorFilter.XorFilterInterface filter = keySet.type.newFilter(filterArena)) {
+            if (!filter.allocate(keySet.size) || !filter.populate(state.scratch, keySet.size)) {
+                throw new RuntimeException("Failed to build filter");
+            }
+            return filter.sizeInBytes();
         }
     }
 
@@ -0,0 +1,102 @@
+package me.lemire.xfuse;
+
+import java.lang.foreign.FunctionDescriptor;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.lang.invoke.MethodHandle;
+
+/**
+ * Native scratch memory for filter construction, reused across populate calls.
+ *
+ * Populating a filter needs several temporary arrays proportional to the number of
+ * keys. {@link XorFilter.XorFilterInterface#populate(MemorySegment, long)} allocates
+ * and frees them on every call; passing a context instead keeps them between calls,
+ * growing them as needed, which saves allocator time and page faults when many
+ * filters are rebuilt. The memory is held until {@link #trim()} or {@link #close()}.
+ *
+ * A context may only be used by the thread that created it.
+ */
+public final class FilterBuildContext implements AutoCloseable {
+    private static final MethodHandle build_context_new = XorFilter.downcall(
+        "xfuse_build_context_new",
+        FunctionDescriptor.of(ValueLayout.ADDRESS)
+    );
+    private static final MethodHandle build_context_free = XorFilter.downcall(
+        "xfuse_build_context_free",
+        FunctionDescriptor.ofVoid(ValueLayout.ADDRESS)
+    );
+    private static final MethodHandle build_context_trim = XorFilter.downcall(
+        "xfuse_build_context_trim",
+        FunctionDescriptor.ofVoid(ValueLayout.ADDRESS)
+    );
+    private static final MethodHandle build_context_size = XorFilter.downcall(
+        "xfuse_build_context_size_in_bytes",
+        FunctionDescriptor.of(ValueLayout.JAVA_LONG, ValueLayout.ADDRESS)
+    );
+    private static final MethodHandle build_context_attempts = XorFilter.downcall(
+        "xfuse_build_context_attempts",
+        FunctionDescriptor.of(ValueLayout.JAVA_INT, ValueLayout.ADDRESS)
+    );
+
+    private final Thread owner = Thread.currentThread();
+    private MemorySegment context;
+
+    public FilterBuildContext() {
+        try {
+            context = (MemorySegment) build_context_new.invokeExact();
+        } catch (Throwable e) {
+            throw new RuntimeException("Failed to create build context", e);
+        }
+        if (context.equals(MemorySegment.NULL)) {
+            throw new OutOfMemoryError("Failed to allocate build context");
+        }
+    }
+
+    // The native context, for the populate calls of the filters
+    MemorySegment segment() {
+        if (Thread.currentThread() != owner) {
+            throw new WrongThreadException("Build context used outside of its owner thread");
+        }
+        if (context == null) {
+            throw new IllegalStateException("Build context is closed");
+        }
+        return context;
+    }
+
+    /**
+     * Bytes of scratch memory currently held.
+     */
+    public long sizeInBytes() throws Throwable {
+        return (long) build_context_size.invokeExact(segment());
+    }
+
+    /**
+     * Number of hash seeds tried by the last successful populate call with this context;
+     * 1 means the keys were placed on the first attempt, and 0 that none succeeded yet.
+     */
+    public int lastAttempts() throws Throwable {
+        return (int) build_context_attempts.invokeExact(segment());
+    }
+
+    /**
+     * Releases the scratch memory; the context stays usable.
+     */
+    public void trim() throws Throwable {
+        build_context_trim.invokeExact(segment());
+    }
+
+    @Override
+    public void close() {
+        if (context == null) {
+            return;
+        }
+        try {
+            build_context_free.invokeExact(segment());
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new RuntimeException("Failed to free build context", e);
+        }
+        context = null;
+    }
+}
@@ -0,0 +1,198 @@
+package me.lemire.xfuse;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Builds filters on a fixed pool of platform threads.
+ *
+ * A populate call is one native downcall, seconds long for 100M keys, and a virtual thread
+ * making it pins its carrier for that long. {@link #buildAsync} hands construction to the
+ * pool instead, so virtual threads only wait on the returned future. The pool size bounds
+ * the cores used for construction, and each worker keeps a {@link FilterBuildContext}, so
+ * its scratch memory is reused from one build to the next.
+ *
+ * At most {@code maxPending} builds are queued or running; beyond that, {@code buildAsync}
+ * blocks until one finishes. Blocking uses a {@link Semaphore}, which parks a virtual thread
+ * without pinning it. Cancelling a future skips the build if it has not started, or closes
+ * the filter once native construction returns, since that cannot be interrupted.
+ *
+ * The returned futures complete on the pool threads: chain further work with the
+ * {@code *Async} methods of {@link CompletableFuture} so as not to occupy them.
+ */
+public final class FilterBuildService implements AutoCloseable {
+    private static final AtomicInteger SERVICES = new AtomicInteger();
+
+    private final ExecutorService executor;
+    private final Semaphore permits;
+    private final int maxPending;
+    // The context of each worker thread, closed by that thread when it exits
+    private final ThreadLocal<FilterBuildContext> context = new ThreadLocal<>();
+
+    /**
+     * A service with one thread per available processor and as many builds queued as running.
+     */
+    public FilterBuildService() {
+        this(Runtime.getRuntime().availableProcessors(), 2 * Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param threads    number of builds that run at once
+     * @param maxPending number of builds queued or running before {@code buildAsync} blocks,
+     *                   at least {@code threads}
+     */
+    public FilterBuildService(int threads, int maxPending) {
+        if (threads < 1 || maxPending < threads) {
+            throw new IllegalArgumentException("Need threads >= 1 and maxPending >= threads: " + threads + ", " + maxPending);
+        }
+        this.maxPending = maxPending;
+        this.permits = new Semaphore(maxPending);
+        String prefix = "xfuse-build-" + SERVICES.incrementAndGet() + "-";
+        AtomicInteger workers = new AtomicInteger();
+        ThreadFactory factory = task -> {
+            Thread thread = new Thread(() -> {
+                try {
+                    task.run();
+                } finally {
+                    FilterBuildContext c = context.get();
+                    if (c != null) {
+                        context.remove();
+                        c.close();
+                    }
+                }
+            }, prefix + workers.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+        // The semaphore bounds the queue
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+            new LinkedBlockingQueue<>(), factory);
+    }
+
+    /**
+     * Copies {@code keys} and builds a filter of the given type from them; see
+     * {@link #buildAsync(XorFilter.FilterType, MemorySegment, long, Arena)}.
+     */
+    public CompletableFuture<XorFilter.XorFilterInterface> buildAsync(XorFilter.FilterType type, long[] keys, Arena arena)
+        throws InterruptedException {
+        // copy only once admitted, so that blocked callers hold no off-heap keys
+        acquire();
+        Arena keyArena = null;
+        try {
+            keyArena = Arena.ofShared();
+            MemorySegment copy = keyArena.allocateFrom(ValueLayout.JAVA_LONG, keys);
+            return execute(type, copy, keys.length, arena, keyArena);
+        } catch (Throwable e) {
+            if (keyArena != null) {
+                keyArena.close();
+            }
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Allocates a filter of the given type in {@code arena} and populates it from the first
+     * {@code count} keys of {@code keys}, on a pool thread. Blocks while {@code maxPending}
+     * builds are queued or running.
+     *
+     * {@code arena} must be accessible from other threads ({@link Arena#ofShared()}), and
+     * {@code keys} must remain valid until the build has run; like
+     * {@link XorFilter.XorFilterInterface#populate(MemorySegment, long)}, it may reorder them.
+     * The future fails with {@link IllegalStateException} if the keys could not be placed.
+     *
+     * @throws InterruptedException if interrupted while waiting for room in the queue
+     * @throws RejectedExecutionException if the service is closed
+     */
+    public CompletableFuture<XorFilter.XorFilterInterface> buildAsync(XorFilter.FilterType type, MemorySegment keys,
+                                                                     long count, Arena arena) throws InterruptedException {
+        acquire();
+        try {
+            return execute(type, keys, count, arena, null);
+        } catch (Throwable e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    private void acquire() throws InterruptedException {
+        if (executor.isShutdown()) {
+            throw new RejectedExecutionException("Filter build service is closed");
+        }
+        permits.acquire();
+    }
+
+    // Runs the build on the pool, which then owns the permit and keyArena
+    private CompletableFuture<XorFilter.XorFilterInterface> execute(XorFilter.FilterType type, MemorySegment keys,
+                                                                   long count, Arena arena, Arena keyArena) {
+        CompletableFuture<XorFilter.XorFilterInterface> future = new CompletableFuture<>();
+        executor.execute(() -> {
+            try {
+                if (!future.isDone()) {
+                    build(type, keys, count, arena, future);
+                }
+            } finally {
+                if (keyArena != null) {
+                    keyArena.close();
+                }
+                permits.release();
+            }
+        });
+        return future;
+    }
+
+    private void build(XorFilter.FilterType type, MemorySegment keys, long count, Arena arena,
+                       CompletableFuture<XorFilter.XorFilterInterface> future) {
+        XorFilter.XorFilterInterface filter = null;
+        try {
+            filter = type.newFilter(arena);
+            if (count > Integer.MAX_VALUE || !filter.allocate((int) count) || !filter.populate(keys, count, context())) {
+                throw new IllegalStateException("Failed to build a " + type + " filter from " + count + " keys");
+            }
+            if (future.complete(filter)) {
+                filter = null;
+            }
+            // else cancelled while native construction ran
+        } catch (Throwable e) {
+            future.completeExceptionally(e);
+        } finally {
+            if (filter != null) {
+                filter.close();
+            }
+        }
+    }
+
+    private FilterBuildContext context() {
+        FilterBuildContext c = context.get();
+        if (c == null) {
+            c = new FilterBuildContext();
+            context.set(c);
+        }
+        return c;
+    }
+
+    /**
+     * Number of builds queued or running.
+     */
+    public int pendingBuilds() {
+        return maxPending - permits.availablePermits();
+    }
+
+    /**
+     * Stops accepting builds and waits for those already submitted to finish.
+     */
+    @Override
+    public void close() {
+        executor.close();
+    }
+}
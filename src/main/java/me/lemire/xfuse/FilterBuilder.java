@@ -0,0 +1,242 @@
+package me.lemire.xfuse;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.LongStream;
+
+/**
+ * Accumulates keys incrementally, off-heap, and builds a filter once all keys are known.
+ *
+ * Keys are appended to chunks of native memory that grow geometrically. Once the chunks
+ * held in memory reach the memory threshold, full chunks are written to a temporary file
+ * instead. Building assembles all keys into one native buffer, since the native
+ * construction needs them contiguous, so peak memory during {@link #build} is about
+ * 8 bytes per key plus the filter itself.
+ *
+ * A builder is not thread-safe. It can build several filters from the same keys.
+ */
+public class FilterBuilder implements AutoCloseable {
+    public static final long DEFAULT_MEMORY_THRESHOLD = 1L << 30;
+    private static final long MIN_CHUNK_KEYS = 1 << 12;
+    private static final long MAX_CHUNK_KEYS = 1 << 20;
+
+    private final long memoryThreshold;
+    private final Path spillDirectory;
+    private final Arena arena = Arena.ofShared();
+    private final List<MemorySegment> chunks = new ArrayList<>();
+    private long chunkBytes;
+    private MemorySegment current;
+    private long position;
+    private long count;
+    private Path spillFile;
+    private FileChannel spill;
+    private long spilledKeys;
+
+    public FilterBuilder() {
+        this(DEFAULT_MEMORY_THRESHOLD, Path.of(System.getProperty("java.io.tmpdir")));
+    }
+
+    /**
+     * @param memoryThreshold bytes of keys kept in memory before spilling to disk
+     * @param spillDirectory  directory of the temporary spill file
+     */
+    public FilterBuilder(long memoryThreshold, Path spillDirectory) {
+        this.memoryThreshold = memoryThreshold;
+        this.spillDirectory = spillDirectory;
+        this.current = arena.allocate(ValueLayout.JAVA_LONG, MIN_CHUNK_KEYS);
+    }
+
+    /**
+     * Number of keys added so far.
+     */
+    public long count() {
+        return count;
+    }
+
+    public FilterBuilder add(long key) {
+        if (position == current.byteSize() / 8) {
+            flush();
+        }
+        current.setAtIndex(ValueLayout.JAVA_LONG, position++, key);
+        count++;
+        return this;
+    }
+
+    public FilterBuilder add(byte[] key, int offset, int length) {
+        return add(KeyHasher.hash(key, offset, length));
+    }
+
+    public FilterBuilder add(MemorySegment key, long offset, long length) {
+        return add(KeyHasher.hash(key, offset, length));
+    }
+
+    /**
+     * Adds the UTF-8 encoding of {@code key}.
+     */
+    public FilterBuilder add(CharSequence key) {
+        return add(KeyHasher.hash(key));
+    }
+
+    /**
+     * Hashes {@code count} variable-length keys natively and adds them;
+     * see {@link KeyHasher#hashAll} for the layout of {@code data} and {@code offsets}.
+     */
+    public FilterBuilder addAll(MemorySegment data, MemorySegment offsets, long count) throws Throwable {
+        long done = 0;
+        while (done < count) {
+            if (position == current.byteSize() / 8) {
+                flush();
+            }
+            long n = Math.min(count - done, current.byteSize() / 8 - position);
+            KeyHasher.hashAll(data, offsets.asSlice(done * 8), n, current.asSlice(position * 8));
+            done += n;
+            position += n;
+            this.count += n;
+        }
+        return this;
+    }
+
+    public FilterBuilder addAll(LongStream keys) {
+        keys.sequential().forEach(this::add);
+        return this;
+    }
+
+    /**
+     * Adds every key of {@code keys}, read as native-order longs.
+     */
+    public FilterBuilder addAll(MemorySegment keys) {
+        long total = keys.byteSize() / 8;
+        long offset = 0;
+        while (offset < total) {
+            if (position == current.byteSize() / 8) {
+                flush();
+            }
+            long n = Math.min(total - offset, current.byteSize() / 8 - position);
+            MemorySegment.copy(keys, offset * 8, current, position * 8, n * 8);
+            offset += n;
+            position += n;
+            count += n;
+        }
+        return this;
+    }
+
+    // Called when the current chunk is full: keep it in memory, or write it to disk and reuse it
+    private void flush() {
+        long next = Math.min(MAX_CHUNK_KEYS, Math.max(MIN_CHUNK_KEYS, count)) * 8;
+        if (spill == null && chunkBytes + current.byteSize() + next <= memoryThreshold) {
+            chunks.add(current);
+            chunkBytes += current.byteSize();
+            current = arena.allocate(next, 8);
+        } else {
+            writeSpill(current);
+        }
+        position = 0;
+    }
+
+    private void writeSpill(MemorySegment chunk) {
+        try {
+            if (spill == null) {
+                spillFile = Files.createTempFile(spillDirectory, "xfuse-keys", ".bin");
+                spill = FileChannel.open(spillFile, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                    StandardOpenOption.DELETE_ON_CLOSE);
+            }
+            ByteBuffer buffer = chunk.asByteBuffer();
+            while (buffer.hasRemaining()) {
+                spill.write(buffer);
+            }
+            spilledKeys += chunk.byteSize() / 8;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to spill keys to " + spillDirectory, e);
+        }
+    }
+
+    /**
+     * Creates a filter of the given type holding every key added so far.
+     */
+    public XorFilter.XorFilterInterface build(Arena arena, XorFilter.FilterType type) throws Throwable {
+        XorFilter.XorFilterInterface filter = type.newFilter(arena);
+        try {
+            return build(filter);
+        } catch (Throwable e) {
+            filter.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Allocates and populates {@code filter} with every key added so far.
+     *
+     * @throws IllegalStateException if the filter cannot be built
+     */
+    public <F extends XorFilter.XorFilterInterface> F build(F filter) throws Throwable {
+        boolean allocated;
+        if (filter instanceof ShardedFilter sharded) {
+            allocated = sharded.allocate(count);
+        } else if (count <= Integer.MAX_VALUE) {
+            allocated = filter.allocate((int) count);
+        } else {
+            throw new IllegalStateException(count + " keys do not fit in a single filter, use a ShardedFilter");
+        }
+        if (!allocated) {
+            throw new IllegalStateException("Failed to allocate a filter for " + count + " keys");
+        }
+        // shared, so that a ShardedFilter can partition the keys on its pool
+        try (Arena buildArena = Arena.ofShared()) {
+            MemorySegment keys = buildArena.allocate(ValueLayout.JAVA_LONG, Math.max(count, 1));
+            long offset = 0;
+            for (MemorySegment chunk : chunks) {
+                MemorySegment.copy(chunk, 0, keys, offset, chunk.byteSize());
+                offset += chunk.byteSize();
+            }
+            if (spill != null) {
+                readSpill(keys.asSlice(offset, spilledKeys * 8));
+                offset += spilledKeys * 8;
+            }
+            MemorySegment.copy(current, 0, keys, offset, position * 8);
+            if (!filter.populate(keys, count)) {
+                throw new IllegalStateException("Failed to populate a filter with " + count + " keys");
+            }
+        }
+        return filter;
+    }
+
+    private void readSpill(MemorySegment target) throws IOException {
+        long filePosition = 0;
+        while (filePosition < target.byteSize()) {
+            long n = Math.min(target.byteSize() - filePosition, 1L << 30);
+            ByteBuffer buffer = target.asSlice(filePosition, n).asByteBuffer();
+            while (buffer.hasRemaining()) {
+                if (spill.read(buffer, filePosition + buffer.position()) < 0) {
+                    throw new IOException("Unexpected end of " + spillFile);
+                }
+            }
+            filePosition += n;
+        }
+    }
+
+    /**
+     * Releases the native memory and deletes the spill file.
+     */
+    @Override
+    public void close() {
+        try {
+            if (spill != null) {
+                spill.close();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to delete " + spillFile, e);
+        } finally {
+            arena.close();
+        }
+    }
+}
@@ -0,0 +1,380 @@
+package me.lemire.xfuse;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Serves the filters of many data segments from files, keeping the recently used ones in
+ * native memory within a byte budget.
+ *
+ * Each segment id is registered with the file of its filter, as written by
+ * {@code serialize} or {@code pack}. A filter is loaded on first use, either copied into
+ * native memory or mapped ({@link LoadMode}), in an arena of its own. A loaded filter is
+ * charged its {@code sizeInBytes()}, or its file size when mapped; once the total exceeds
+ * the budget, filters are evicted in CLOCK order, an approximation of least recently used:
+ * the resident filters form a ring in load order, a query marks its filter as referenced,
+ * and the eviction hand spares a referenced filter once, clearing its mark. A filter that
+ * was loaded and not queried since is thus evicted first. Filters in use by a query or a
+ * {@link FilterHolder.Lease} are passed over, so the budget may be exceeded while all of
+ * them are in use. An evicted filter is freed, with its arena, when its last reader leaves.
+ *
+ * Queries on resident filters take no lock. Distinct segments load in parallel, and
+ * concurrent misses on one segment load it once. Each eviction costs O(1) amortized.
+ */
+public final class FilterCatalog implements AutoCloseable {
+
+    public enum LoadMode {
+        /** Reads the file into native memory; the file may be packed. */
+        DESERIALIZE,
+        /** Maps the file read-only, as {@link XorFilter#map}; the file must not be packed. */
+        MAP
+    }
+
+    /**
+     * Counters since the catalog was created. A query that finds its filter resident, or
+     * loaded by a concurrent query, is a hit; one that loads it is a miss.
+     */
+    public record Stats(long hits, long misses, long evictions, long residentBytes, int residentFilters) {
+        public double hitRate() {
+            long total = hits + misses;
+            return total == 0 ? Double.NaN : (double) hits / total;
+        }
+    }
+
+    // A registered segment. entry, bytes, loads and removed change under lock, which is
+    // not a monitor so that virtual threads loading a filter do not pin their carrier.
+    private static final class Slot {
+        final Path path;
+        final LoadMode mode;
+        final ReentrantLock lock = new ReentrantLock();
+        volatile FilterHolder.Entry entry;
+        // Set by queries, cleared by the eviction hand
+        volatile boolean referenced;
+        long bytes;
+        long loads;
+        boolean removed;
+        // Neighbours in the eviction ring, null when out of it; guarded by evictionLock
+        Slot previous;
+        Slot next;
+
+        Slot(Path path, LoadMode mode) {
+            this.path = path;
+            this.mode = mode;
+        }
+    }
+
+    private final long budgetBytes;
+    private final ConcurrentHashMap<Long, Slot> slots = new ConcurrentHashMap<>();
+    private final AtomicLong residentBytes = new AtomicLong();
+    private final AtomicInteger residentFilters = new AtomicInteger();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    // The next slot the eviction hand looks at, and the number of slots in the ring; guarded by evictionLock
+    private Slot hand;
+    private int ringSize;
+    private volatile boolean closed;
+
+    /**
+     * @param budgetBytes native bytes that resident filters may take in total
+     */
+    public FilterCatalog(long budgetBytes) {
+        if (budgetBytes < 0) {
+            throw new IllegalArgumentException("Negative budget: " + budgetBytes);
+        }
+        this.budgetBytes = budgetBytes;
+    }
+
+    public long budgetBytes() {
+        return budgetBytes;
+    }
+
+    public void register(long segmentId, Path path) {
+        register(segmentId, path, LoadMode.DESERIALIZE);
+    }
+
+    /**
+     * Associates {@code segmentId} with a filter file. Nothing is read until the first
+     * query. A filter already registered under that id is dropped.
+     */
+    public void register(long segmentId, Path path, LoadMode mode) {
+        checkOpen();
+        Slot previous = slots.put(segmentId, new Slot(path, mode));
+        if (previous != null) {
+            remove(previous);
+        }
+    }
+
+    /**
+     * Forgets {@code segmentId}, dropping its filter if loaded.
+     *
+     * @return false if the id was not registered
+     */
+    public boolean unregister(long segmentId) {
+        Slot slot = slots.remove(segmentId);
+        if (slot == null) {
+            return false;
+        }
+        remove(slot);
+        return true;
+    }
+
+    public boolean isResident(long segmentId) {
+        Slot slot = slots.get(segmentId);
+        return slot != null && slot.entry != null;
+    }
+
+    public boolean contains(long segmentId, long key) throws Throwable {
+        FilterHolder.Entry entry = pin(segmentId);
+        try {
+            return entry.filter.contains(key);
+        } finally {
+            entry.release();
+        }
+    }
+
+    public long containsBatch(long segmentId, MemorySegment keys, long count, MemorySegment bitmapOut) throws Throwable {
+        FilterHolder.Entry entry = pin(segmentId);
+        try {
+            return entry.filter.containsBatch(keys, count, bitmapOut);
+        } finally {
+            entry.release();
+        }
+    }
+
+    /**
+     * Pins the filter of {@code segmentId}, loading it if needed; it is not evicted before
+     * the lease is closed. The version of the lease counts the previous loads of the segment.
+     *
+     * @throws IllegalArgumentException if {@code segmentId} is not registered
+     */
+    public FilterHolder.Lease acquire(long segmentId) throws Throwable {
+        return new FilterHolder.Lease(pin(segmentId));
+    }
+
+    public Stats stats() {
+        return new Stats(hits.sum(), misses.sum(), evictions.sum(), residentBytes.get(), residentFilters.get());
+    }
+
+    private FilterHolder.Entry pin(long segmentId) throws Throwable {
+        while (true) {
+            checkOpen();
+            Slot slot = slots.get(segmentId);
+            if (slot == null) {
+                throw new IllegalArgumentException("Unknown segment " + segmentId);
+            }
+            FilterHolder.Entry entry = slot.entry;
+            if (entry != null && entry.tryAcquire()) {
+                hits.increment();
+                touch(slot);
+                return entry;
+            }
+            entry = load(slot);
+            if (entry != null) {
+                enqueue(slot);
+                evict();
+                return entry;
+            }
+            // the slot was unregistered or replaced meanwhile: look the id up again
+        }
+    }
+
+    // Writing only when the mark is clear keeps the cache line of a hot slot shared
+    private static void touch(Slot slot) {
+        if (!slot.referenced) {
+            slot.referenced = true;
+        }
+    }
+
+    // Returns the pinned filter of the slot, loaded unless a concurrent query did, or null if the slot was removed
+    private FilterHolder.Entry load(Slot slot) throws Throwable {
+        slot.lock.lock();
+        try {
+            if (slot.removed) {
+                return null;
+            }
+            FilterHolder.Entry entry = slot.entry;
+            if (entry != null && entry.tryAcquire()) {
+                hits.increment();
+                touch(slot);
+                return entry;
+            }
+            misses.increment();
+            Arena arena = Arena.ofShared();
+            XorFilter.XorFilterInterface filter;
+            long bytes;
+            try {
+                if (slot.mode == LoadMode.MAP) {
+                    filter = XorFilter.map(arena, slot.path);
+                    bytes = Files.size(slot.path);
+                } else {
+                    filter = read(arena, slot.path);
+                    bytes = filter.sizeInBytes();
+                }
+            } catch (Throwable e) {
+                arena.close();
+                throw e;
+            }
+            entry = new FilterHolder.Entry(filter, arena, slot.loads++);
+            entry.tryAcquire();
+            slot.bytes = bytes;
+            slot.referenced = false;
+            slot.entry = entry;
+            residentBytes.addAndGet(bytes);
+            residentFilters.incrementAndGet();
+            return entry;
+        } finally {
+            slot.lock.unlock();
+        }
+    }
+
+    private static XorFilter.XorFilterInterface read(Arena arena, Path path) throws Throwable {
+        try (Arena fileArena = Arena.ofConfined();
+             FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            MemorySegment mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size(), fileArena);
+            return XorFilter.deserialize(arena, mapped);
+        }
+    }
+
+    // Adds a loaded slot to the ring, behind the hand, unless it is still there from a previous
+    // load or was dropped meanwhile
+    private void enqueue(Slot slot) {
+        evictionLock.lock();
+        try {
+            if (slot.next != null || slot.entry == null) {
+                return;
+            }
+            if (hand == null) {
+                slot.previous = slot;
+                slot.next = slot;
+                hand = slot;
+            } else {
+                slot.previous = hand.previous;
+                slot.next = hand;
+                hand.previous.next = slot;
+                hand.previous = slot;
+            }
+            ringSize++;
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    // Removes the slot from the ring; under evictionLock
+    private void unlink(Slot slot) {
+        if (slot.next == null) {
+            return;
+        }
+        if (slot.next == slot) {
+            hand = null;
+        } else {
+            slot.previous.next = slot.next;
+            slot.next.previous = slot.previous;
+            if (hand == slot) {
+                hand = slot.next;
+            }
+        }
+        slot.previous = null;
+        slot.next = null;
+        ringSize--;
+    }
+
+    /*
+     * Evicts filters in CLOCK order until the resident ones fit in the budget. The hand
+     * clears the mark of a referenced filter and passes over pinned ones; after two turns
+     * without a victim, every remaining filter is pinned.
+     */
+    private void evict() {
+        if (residentBytes.get() <= budgetBytes) {
+            return;
+        }
+        evictionLock.lock();
+        try {
+            long idle = 0;
+            while (residentBytes.get() > budgetBytes && hand != null && idle <= 2L * ringSize) {
+                Slot slot = hand;
+                hand = slot.next;
+                FilterHolder.Entry entry = slot.entry;
+                if (entry == null) {
+                    // unloaded since it joined the ring
+                    unlink(slot);
+                } else if (slot.referenced) {
+                    slot.referenced = false;
+                    idle++;
+                } else if (entry.pinned()) {
+                    idle++;
+                } else {
+                    if (unload(slot)) {
+                        evictions.increment();
+                    }
+                    unlink(slot);
+                    idle = 0;
+                }
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    // Drops the filter of the slot; readers that hold it keep it until they leave
+    private boolean unload(Slot slot) {
+        FilterHolder.Entry entry;
+        slot.lock.lock();
+        try {
+            entry = slot.entry;
+            if (entry == null) {
+                return false;
+            }
+            slot.entry = null;
+            residentBytes.addAndGet(-slot.bytes);
+            residentFilters.decrementAndGet();
+        } finally {
+            slot.lock.unlock();
+        }
+        entry.retire();
+        return true;
+    }
+
+    private void remove(Slot slot) {
+        slot.lock.lock();
+        try {
+            slot.removed = true;
+        } finally {
+            slot.lock.unlock();
+        }
+        unload(slot);
+        evictionLock.lock();
+        try {
+            unlink(slot);
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("Filter catalog is closed");
+        }
+    }
+
+    /**
+     * Drops every filter; those still in use are freed when their readers leave.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        for (Long id : slots.keySet()) {
+            unregister(id);
+        }
+    }
+}
@@ -0,0 +1,227 @@
+package me.lemire.xfuse;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Publishes a filter to many reader threads and replaces it without stopping them.
+ *
+ * Readers go through {@link #contains}, {@link #containsBatch} or {@link #acquire()};
+ * {@link #swap} installs a new filter atomically. A replaced filter is retired: new
+ * readers see the new one, and the old one is closed, together with its arena, by
+ * whichever thread leaves it last. Queries never touch freed native memory, and no lock
+ * is taken on either side.
+ *
+ * Published filters must not be repopulated, and their arena must allow access from
+ * any thread ({@link Arena#ofShared()}). The holder owns both and closes them.
+ */
+public final class FilterHolder implements AutoCloseable {
+
+    // One published filter. state = 2 * readers + retired bit; freed on reaching exactly RETIRED.
+    // FilterCatalog holds its resident filters in entries too.
+    static final class Entry {
+        private static final long RETIRED = 1;
+        private static final long READER = 2;
+
+        final XorFilter.XorFilterInterface filter;
+        final Arena arena;
+        final long version;
+        final AtomicLong state = new AtomicLong();
+
+        Entry(XorFilter.XorFilterInterface filter, Arena arena, long version) {
+            this.filter = filter;
+            this.arena = arena;
+            this.version = version;
+        }
+
+        boolean tryAcquire() {
+            long s;
+            do {
+                s = state.get();
+                if ((s & RETIRED) != 0) {
+                    return false;
+                }
+            } while (!state.compareAndSet(s, s + READER));
+            return true;
+        }
+
+        boolean pinned() {
+            return state.get() >= READER;
+        }
+
+        void release() {
+            if (state.addAndGet(-READER) == RETIRED) {
+                reclaim();
+            }
+        }
+
+        void retire() {
+            if (state.getAndAdd(RETIRED) == 0) {
+                reclaim();
+            }
+        }
+
+        private void reclaim() {
+            try {
+                filter.close();
+            } finally {
+                if (arena != null) {
+                    arena.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * A reader's hold on the current filter. The filter stays valid until the lease is closed.
+     */
+    public static final class Lease implements AutoCloseable {
+        private final Entry entry;
+        private boolean closed;
+
+        Lease(Entry entry) {
+            this.entry = entry;
+        }
+
+        public XorFilter.XorFilterInterface filter() {
+            return entry.filter;
+        }
+
+        public long version() {
+            return entry.version;
+        }
+
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                entry.release();
+            }
+        }
+    }
+
+    private final AtomicReference<Entry> current;
+
+    /**
+     * @param filter a populated filter
+     * @param arena  the shared arena holding {@code filter}, closed when the filter is
+     *               reclaimed; may be null if the caller manages it
+     */
+    public FilterHolder(XorFilter.XorFilterInterface filter, Arena arena) {
+        this.current = new AtomicReference<>(new Entry(filter, arena, 0));
+    }
+
+    // Pins the current entry; retries at most once per concurrent swap
+    private Entry pin() {
+        while (true) {
+            Entry entry = current.get();
+            if (entry == null) {
+                throw new IllegalStateException("Filter holder is closed");
+            }
+            if (entry.tryAcquire()) {
+                return entry;
+            }
+        }
+    }
+
+    public boolean contains(long key) throws Throwable {
+        Entry entry = pin();
+        try {
+            return entry.filter.contains(key);
+        } finally {
+            entry.release();
+        }
+    }
+
+    /**
+     * Tests the UTF-8 encoding of {@code key}; see {@link KeyHasher}.
+     */
+    public boolean contains(CharSequence key) throws Throwable {
+        return contains(KeyHasher.hash(key));
+    }
+
+    public long containsBatch(MemorySegment keys, long count, MemorySegment bitmapOut) throws Throwable {
+        Entry entry = pin();
+        try {
+            return entry.filter.containsBatch(keys, count, bitmapOut);
+        } finally {
+            entry.release();
+        }
+    }
+
+    /**
+     * Pins the current filter for several operations; close the lease promptly, since
+     * a retired filter is only reclaimed once every lease on it is closed.
+     */
+    public Lease acquire() {
+        return new Lease(pin());
+    }
+
+    /**
+     * Version of the current filter, incremented by every swap.
+     */
+    public long version() {
+        Entry entry = current.get();
+        if (entry == null) {
+            throw new IllegalStateException("Filter holder is closed");
+        }
+        return entry.version;
+    }
+
+    /**
+     * Publishes {@code filter} and retires the previous one.
+     *
+     * @return the version of the new filter
+     * @throws IllegalStateException if the holder is closed; {@code filter} is then left to the caller
+     */
+    public long swap(XorFilter.XorFilterInterface filter, Arena arena) {
+        while (true) {
+            Entry previous = current.get();
+            if (previous == null) {
+                throw new IllegalStateException("Filter holder is closed");
+            }
+            Entry next = new Entry(filter, arena, previous.version + 1);
+            if (current.compareAndSet(previous, next)) {
+                previous.retire();
+                return next.version;
+            }
+        }
+    }
+
+    /**
+     * Builds a filter of the given type in a new shared arena and publishes it.
+     *
+     * @return the version of the new filter
+     */
+    public long swap(XorFilter.FilterType type, MemorySegment keys, long count) throws Throwable {
+        Arena arena = Arena.ofShared();
+        XorFilter.XorFilterInterface filter = null;
+        try {
+            filter = type.newFilter(arena);
+            if (count > Integer.MAX_VALUE || !filter.allocate((int) count) || !filter.populate(keys, count)) {
+                throw new IllegalStateException("Failed to build a " + type + " filter from " + count + " keys");
+            }
+            return swap(filter, arena);
+        } catch (Throwable e) {
+            if (filter != null) {
+                filter.close();
+            }
+            arena.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Retires the current filter; it is reclaimed once in-flight readers have left.
+     * Further queries throw {@link IllegalStateException}.
+     */
+    @Override
+    public void close() {
+        Entry entry = current.getAndSet(null);
+        if (entry != null) {
+            entry.retire();
+        }
+    }
+}
@@ -0,0 +1,331 @@
+package me.lemire.xfuse;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongPredicate;
+
+/**
+ * A filter wrapper that counts queries and records construction and batch queries as
+ * JDK Flight Recorder events.
+ *
+ * Counters are striped ({@link LongAdder}), so many query threads can share one wrapper.
+ * Two JFR events are emitted, in the "Filters" category: {@code me.lemire.xfuse.Populate}
+ * for every populate call (key count, duration, retries, filter size) and
+ * {@code me.lemire.xfuse.BatchQuery} for a sample of {@code containsBatch} calls. They
+ * cost nothing beyond a flag check when no recording is running.
+ *
+ * To measure the false positive rate in production, install a membership check with
+ * {@link #setMembershipCheck}: a sample of the positive answers is checked against the
+ * authoritative source, and {@link #metrics()} estimates the observed rate, to be
+ * compared with the expected rate of the filter type.
+ */
+public final class InstrumentedFilter implements XorFilter.XorFilterInterface {
+
+    @Name("me.lemire.xfuse.Populate")
+    @Label("Filter Populate")
+    @Category("Filters")
+    @Description("Construction of a filter from a set of keys")
+    static final class PopulateEvent extends Event {
+        @Label("Filter Type")
+        String filterType;
+
+        @Label("Keys")
+        long keyCount;
+
+        @Label("Retries")
+        @Description("Hash seeds tried beyond the first one, -1 if unknown")
+        int retries;
+
+        @Label("Filter Size")
+        @DataAmount
+        long bytes;
+
+        @Label("Success")
+        boolean success;
+    }
+
+    @Name("me.lemire.xfuse.BatchQuery")
+    @Label("Filter Batch Query")
+    @Category("Filters")
+    @Description("A sampled containsBatch call")
+    static final class BatchQueryEvent extends Event {
+        @Label("Filter Type")
+        String filterType;
+
+        @Label("Keys")
+        long keyCount;
+
+        @Label("Positives")
+        long positives;
+    }
+
+    /**
+     * A snapshot of the counters.
+     *
+     * @param queries            keys tested
+     * @param positives          keys reported as possibly in the set
+     * @param sampledPositives   positives passed to the membership check
+     * @param confirmedNegatives sampled positives that the check rejected (false positives)
+     * @param falsePositiveRate  estimated share of absent keys reported as present; NaN
+     *                           until there is enough data
+     * @param expectedFalsePositiveRate the rate expected for the filter type
+     */
+    public record Metrics(long queries, long positives, long sampledPositives, long confirmedNegatives,
+                          double falsePositiveRate, double expectedFalsePositiveRate) {
+    }
+
+    // Record one containsBatch call in this many, on average
+    public static final int DEFAULT_BATCH_SAMPLE_INTERVAL = 64;
+
+    private final XorFilter.FilterType type;
+    private final XorFilter.XorFilterInterface filter;
+
+    private final LongAdder queries = new LongAdder();
+    private final LongAdder positives = new LongAdder();
+    private final LongAdder sampledPositives = new LongAdder();
+    private final LongAdder confirmedNegatives = new LongAdder();
+
+    private volatile int batchSampleInterval = DEFAULT_BATCH_SAMPLE_INTERVAL;
+    private volatile LongPredicate membershipCheck;
+    private volatile double checkRate;
+
+    /**
+     * @param type   the type of {@code filter}, for event labels and the expected rate
+     * @param filter the filter to instrument; closed with the wrapper
+     */
+    public InstrumentedFilter(XorFilter.FilterType type, XorFilter.XorFilterInterface filter) {
+        this.type = type;
+        this.filter = filter;
+    }
+
+    public XorFilter.XorFilterInterface filter() {
+        return filter;
+    }
+
+    /**
+     * Records one {@code containsBatch} call in {@code interval} on average as a JFR
+     * event; 1 records every call and 0 none.
+     */
+    public void setBatchSampleInterval(int interval) {
+        if (interval < 0) {
+            throw new IllegalArgumentException("negative sample interval: " + interval);
+        }
+        batchSampleInterval = interval;
+    }
+
+    /**
+     * Checks a fraction {@code rate} of the positive answers with {@code isMember}, which
+     * must return whether the key is really in the set. Pass null to stop checking.
+     */
+    public void setMembershipCheck(LongPredicate isMember, double rate) {
+        if (!(rate >= 0 && rate <= 1)) {
+            throw new IllegalArgumentException("rate must be between 0 and 1: " + rate);
+        }
+        checkRate = rate;
+        membershipCheck = isMember;
+    }
+
+    public Metrics metrics() {
+        long q = queries.sum();
+        long p = positives.sum();
+        long sampled = sampledPositives.sum();
+        long negatives = confirmedNegatives.sum();
+        // Xor filters have no false negatives: every negative answer is a true negative,
+        // and the sample tells which share of the positives are false.
+        double falsePositives = p == 0 ? 0 : sampled == 0 ? Double.NaN : (double) p * negatives / sampled;
+        double rate = falsePositives / (q - p + falsePositives);
+        double expected = filter instanceof XorFilter.BinaryFuseFilter bits
+            ? bits.falsePositiveRate() : type.falsePositiveRate();
+        return new Metrics(q, p, sampled, negatives, rate, expected);
+    }
+
+    @Override
+    public boolean allocate(int size) throws Throwable {
+        return filter.allocate(size);
+    }
+
+    @Override
+    public long fingerprintBytes(int size) throws Throwable {
+        return filter.fingerprintBytes(size);
+    }
+
+    @Override
+    public boolean allocate(int size, MemorySegment storage) throws Throwable {
+        return filter.allocate(size, storage);
+    }
+
+    @Override
+    public boolean populate(long[] keys) throws Throwable {
+        PopulateEvent event = new PopulateEvent();
+        event.begin();
+        boolean success = false;
+        try {
+            success = filter.populate(keys);
+            return success;
+        } finally {
+            commit(event, keys.length, success, null);
+        }
+    }
+
+    @Override
+    public boolean populate(MemorySegment keys, long count) throws Throwable {
+        PopulateEvent event = new PopulateEvent();
+        event.begin();
+        boolean success = false;
+        try {
+            success = filter.populate(keys, count);
+            return success;
+        } finally {
+            commit(event, count, success, null);
+        }
+    }
+
+    @Override
+    public boolean populate(MemorySegment keys, long count, FilterBuildContext context) throws Throwable {
+        PopulateEvent event = new PopulateEvent();
+        event.begin();
+        boolean success = false;
+        try {
+            success = filter.populate(keys, count, context);
+            return success;
+        } finally {
+            commit(event, count, success, context);
+        }
+    }
+
+    // Only a build context knows how many seeds were tried
+    private void commit(PopulateEvent event, long count, boolean success, FilterBuildContext context) throws Throwable {
+        event.end();
+        if (event.shouldCommit()) {
+            event.filterType = type.name();
+            event.keyCount = count;
+            event.retries = success && context != null ? context.lastAttempts() - 1 : -1;
+            event.bytes = success ? filter.sizeInBytes() : 0;
+            event.success = success;
+            event.commit();
+        }
+    }
+
+    @Override
+    public boolean contains(long key) throws Throwable {
+        boolean result = filter.contains(key);
+        queries.increment();
+        if (result) {
+            positives.increment();
+            LongPredicate check = membershipCheck;
+            if (check != null && ThreadLocalRandom.current().nextDouble() < checkRate) {
+                confirm(check, key);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public long containsBatch(MemorySegment keys, long count, MemorySegment bitmapOut) throws Throwable {
+        int interval = batchSampleInterval;
+        BatchQueryEvent event = null;
+        if (interval > 0 && ThreadLocalRandom.current().nextInt(interval) == 0) {
+            event = new BatchQueryEvent();
+            event.begin();
+        }
+        long result = filter.containsBatch(keys, count, bitmapOut);
+        if (event != null) {
+            event.end();
+            if (event.shouldCommit()) {
+                event.filterType = type.name();
+                event.keyCount = count;
+                event.positives = result;
+                event.commit();
+            }
+        }
+        queries.add(count);
+        positives.add(result);
+        LongPredicate check = membershipCheck;
+        if (check != null && result > 0) {
+            confirmBatch(check, keys, count, bitmapOut);
+        }
+        return result;
+    }
+
+    private void confirmBatch(LongPredicate check, MemorySegment keys, long count, MemorySegment bitmap) {
+        double rate = checkRate;
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (long w = 0; w < (count + 63) / 64; w++) {
+            long word = bitmap.getAtIndex(ValueLayout.JAVA_LONG, w);
+            while (word != 0) {
+                long i = w * 64 + Long.numberOfTrailingZeros(word);
+                word &= word - 1;
+                if (random.nextDouble() < rate) {
+                    confirm(check, keys.getAtIndex(ValueLayout.JAVA_LONG, i));
+                }
+            }
+        }
+    }
+
+    private void confirm(LongPredicate check, long key) {
+        sampledPositives.increment();
+        if (!check.test(key)) {
+            confirmedNegatives.increment();
+        }
+    }
+
+    @Override
+    public long sizeInBytes() throws Throwable {
+        return filter.sizeInBytes();
+    }
+
+    @Override
+    public long serializedSize() throws Throwable {
+        return filter.serializedSize();
+    }
+
+    @Override
+    public long serialize(MemorySegment out) throws Throwable {
+        return filter.serialize(out);
+    }
+
+    @Override
+    public long serialize(ByteBuffer out) throws Throwable {
+        return filter.serialize(out);
+    }
+
+    @Override
+    public long packedSize() throws Throwable {
+        return filter.packedSize();
+    }
+
+    @Override
+    public long pack(MemorySegment out) throws Throwable {
+        return filter.pack(out);
+    }
+
+    @Override
+    public long pack(ByteBuffer out) throws Throwable {
+        return filter.pack(out);
+    }
+
+    @Override
+    public XorFilter.QueryEngine getQueryEngine() {
+        return filter.getQueryEngine();
+    }
+
+    @Override
+    public void setQueryEngine(XorFilter.QueryEngine engine) {
+        filter.setQueryEngine(engine);
+    }
+
+    @Override
+    public void close() {
+        filter.close();
+    }
+}
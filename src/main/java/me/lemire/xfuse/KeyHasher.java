@@ -0,0 +1,179 @@
+package me.lemire.xfuse;
+
+import java.lang.foreign.FunctionDescriptor;
+import java.lang.foreign.Linker;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * The hash that maps variable-length keys (byte strings, and character strings through
+ * their UTF-8 encoding) to the 64-bit keys stored in the filters.
+ *
+ * The same function is implemented natively ({@code xfuse_hash_bytes}) and here, so
+ * keys hashed in bulk at build time match keys hashed one at a time at query time.
+ * None of the single-key methods allocate.
+ */
+public final class KeyHasher {
+    private static final long SEED = 0x9e3779b97f4a7c15L;
+    private static final long K1 = 0x87c37b91114253d5L;
+    private static final long K2 = 0x4cf5ad432745937fL;
+
+    private static final VarHandle LONG_LE = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final ValueLayout.OfLong SEGMENT_LONG_LE = ValueLayout.JAVA_LONG_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+
+    private static final MethodHandle hash_keys = XorFilter.downcall(
+        "xfuse_hash_keys",
+        FunctionDescriptor.ofVoid(ValueLayout.ADDRESS, ValueLayout.ADDRESS, ValueLayout.JAVA_LONG, ValueLayout.ADDRESS)
+    );
+    private static final MethodHandle hash_keys_heap = XorFilter.downcall(
+        "xfuse_hash_keys",
+        FunctionDescriptor.ofVoid(ValueLayout.ADDRESS, ValueLayout.ADDRESS, ValueLayout.JAVA_LONG, ValueLayout.ADDRESS),
+        Linker.Option.critical(true)
+    );
+
+    private KeyHasher() {
+    }
+
+    private static long mix(long h, long word) {
+        h ^= word * K1;
+        return Long.rotateLeft(h, 31) * K2;
+    }
+
+    private static long finish(long h, long length) {
+        return XorFilter.murmur64(h ^ length);
+    }
+
+    public static long hash(byte[] key) {
+        return hash(key, 0, key.length);
+    }
+
+    public static long hash(byte[] key, int offset, int length) {
+        java.util.Objects.checkFromIndexSize(offset, length, key.length);
+        long h = SEED;
+        int i = 0;
+        for (; i + 8 <= length; i += 8) {
+            h = mix(h, (long) LONG_LE.get(key, offset + i));
+        }
+        if (i < length) {
+            long word = 0;
+            for (int j = length - 1; j >= i; j--) {
+                word = (word << 8) | (key[offset + j] & 0xFF);
+            }
+            h = mix(h, word);
+        }
+        return finish(h, length);
+    }
+
+    public static long hash(MemorySegment key, long offset, long length) {
+        long h = SEED;
+        long i = 0;
+        for (; i + 8 <= length; i += 8) {
+            h = mix(h, key.get(SEGMENT_LONG_LE, offset + i));
+        }
+        if (i < length) {
+            long word = 0;
+            for (long j = length - 1; j >= i; j--) {
+                word = (word << 8) | (key.get(ValueLayout.JAVA_BYTE, offset + j) & 0xFF);
+            }
+            h = mix(h, word);
+        }
+        return finish(h, length);
+    }
+
+    /**
+     * Hashes the remaining bytes of {@code key}, leaving its position unchanged.
+     */
+    public static long hash(ByteBuffer key) {
+        if (key.hasArray()) {
+            return hash(key.array(), key.arrayOffset() + key.position(), key.remaining());
+        }
+        return hash(MemorySegment.ofBuffer(key), 0, key.remaining());
+    }
+
+    /**
+     * Hashes the UTF-8 encoding of {@code key}, encoding on the fly. Unpaired surrogates
+     * are encoded as '?', like {@link String#getBytes(java.nio.charset.Charset)} does.
+     */
+    public static long hash(CharSequence key) {
+        long h = SEED;
+        long word = 0;
+        int fill = 0; // bytes buffered in word
+        long length = 0;
+        int n = key.length();
+        for (int i = 0; i < n; i++) {
+            char c = key.charAt(i);
+            long bytes;
+            int count;
+            if (c < 0x80) {
+                bytes = c;
+                count = 1;
+            } else if (c < 0x800) {
+                bytes = (0xC0 | (c >>> 6)) | (0x80 | (c & 0x3F)) << 8;
+                count = 2;
+            } else if (!Character.isSurrogate(c)) {
+                bytes = (0xE0 | (c >>> 12)) | (0x80 | ((c >>> 6) & 0x3F)) << 8 | (0x80 | (c & 0x3F)) << 16;
+                count = 3;
+            } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(key.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, key.charAt(++i));
+                bytes = (0xF0 | (cp >>> 18)) | (0x80 | ((cp >>> 12) & 0x3F)) << 8
+                    | (0x80 | ((cp >>> 6) & 0x3F)) << 16 | (long) (0x80 | (cp & 0x3F)) << 24;
+                count = 4;
+            } else {
+                bytes = '?';
+                count = 1;
+            }
+            word |= bytes << (fill * 8);
+            length += count;
+            if (fill + count < 8) {
+                fill += count;
+            } else {
+                h = mix(h, word);
+                int used = 8 - fill;
+                word = used < count ? bytes >>> (used * 8) : 0;
+                fill = count - used;
+            }
+        }
+        if (fill > 0) {
+            h = mix(h, word);
+        }
+        return finish(h, length);
+    }
+
+    /**
+     * Hashes {@code count} keys in one native call. The i-th key spans the bytes of
+     * {@code data} from {@code offsets[i]} to {@code offsets[i + 1]}, so {@code offsets}
+     * holds {@code count + 1} longs. Segments may be native or heap segments; heap segments
+     * are hashed a few thousand keys per call, since native code holds off the GC while it
+     * reads them.
+     */
+    public static void hashAll(MemorySegment data, MemorySegment offsets, long count, MemorySegment out) throws Throwable {
+        if (offsets.byteSize() < (count + 1) * 8 || out.byteSize() < count * 8) {
+            throw new IndexOutOfBoundsException("segments too small for " + count + " keys");
+        }
+        long previous = offsets.getAtIndex(ValueLayout.JAVA_LONG_UNALIGNED, 0);
+        for (long i = 1; i <= count; i++) {
+            long next = offsets.getAtIndex(ValueLayout.JAVA_LONG_UNALIGNED, i);
+            if (previous < 0 || next < previous) {
+                throw new IllegalArgumentException("offsets must be non-negative and non-decreasing");
+            }
+            previous = next;
+        }
+        if (previous > data.byteSize()) {
+            throw new IndexOutOfBoundsException("offsets point past the end of the data segment");
+        }
+        if (data.isNative() && offsets.isNative() && out.isNative()) {
+            hash_keys.invokeExact(data, offsets, count, out);
+            return;
+        }
+        // offsets are relative to the start of data, which every chunk passes whole
+        for (long start = 0; start < count; start += XorFilter.BATCH_CHUNK) {
+            long n = Math.min(XorFilter.BATCH_CHUNK, count - start);
+            hash_keys_heap.invokeExact(data, offsets.asSlice(start * 8, (n + 1) * 8), n, out.asSlice(start * 8, n * 8));
+        }
+    }
+}
@@ -0,0 +1,489 @@
+package me.lemire.xfuse;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A filter that accepts new keys: an immutable base filter answers for the keys it was
+ * built from, and a small off-heap hash set, the delta, holds the keys added since.
+ *
+ * Once the delta reaches {@code deltaThreshold} keys, it is frozen and a new base is built
+ * from the old one's keys and the delta's on a {@link FilterBuildService}; keys added in the
+ * meantime go to a second delta. The new base is then published atomically, in the manner
+ * of {@link FilterHolder}, and the old base is freed by the last query that uses it. Queries
+ * take no lock and never wait for a rebuild. Adds are serialized; the add that starts a
+ * rebuild merges the delta into a copy of the key log, and adds block only if the second
+ * delta fills up too, at twice the threshold, before the rebuild is done.
+ *
+ * The keys are kept off-heap besides the filter, 8 bytes each, since a filter cannot give
+ * them back. The log is sorted and distinct: a key added again after being merged into the
+ * base is dropped by the next merge.
+ */
+public final class LayeredFilter implements AutoCloseable {
+    private static final int MAX_DELTA_THRESHOLD = 1 << 28;
+
+    // Insert-only open-addressed set of keys. Writes happen under the writer lock; reads take
+    // no lock, since a key never moves once written.
+    private static final class Delta {
+        private static final VarHandle SLOT = ValueLayout.JAVA_LONG.varHandle();
+
+        private final MemorySegment table;
+        private final long mask;
+        private final int capacity;
+        private volatile int size;
+        // 0 marks empty slots, so key 0 is recorded apart
+        private volatile boolean zero;
+
+        Delta(Arena arena, int capacity) {
+            long slots = Long.highestOneBit(2L * capacity - 1) << 1;
+            this.table = arena.allocate(ValueLayout.JAVA_LONG, slots);
+            this.mask = slots - 1;
+            this.capacity = capacity;
+        }
+
+        int size() {
+            return size;
+        }
+
+        boolean isFull() {
+            return size >= capacity;
+        }
+
+        boolean contains(long key) {
+            if (key == 0) {
+                return zero;
+            }
+            // at most half the slots are used, so an empty one ends the probe
+            for (long i = XorFilter.murmur64(key) & mask; ; i = (i + 1) & mask) {
+                long k = (long) SLOT.getAcquire(table, i * 8);
+                if (k == key) {
+                    return true;
+                }
+                if (k == 0) {
+                    return false;
+                }
+            }
+        }
+
+        // The caller checked that the key is absent and the set is not full
+        void add(long key) {
+            if (key == 0) {
+                zero = true;
+            } else {
+                long i = XorFilter.murmur64(key) & mask;
+                while (table.getAtIndex(ValueLayout.JAVA_LONG, i) != 0) {
+                    i = (i + 1) & mask;
+                }
+                SLOT.setRelease(table, i * 8, key);
+            }
+            size = size + 1;
+        }
+
+        long[] sortedKeys() {
+            long[] keys = new long[size];
+            int n = 0;
+            if (zero) {
+                keys[n++] = 0;
+            }
+            for (long i = 0; i <= mask; i++) {
+                long k = table.getAtIndex(ValueLayout.JAVA_LONG, i);
+                if (k != 0) {
+                    keys[n++] = k;
+                }
+            }
+            Arrays.sort(keys);
+            return keys;
+        }
+
+        void addAll(Delta other) {
+            if (other.zero) {
+                add(0);
+            }
+            for (long i = 0; i <= other.mask; i++) {
+                long k = other.table.getAtIndex(ValueLayout.JAVA_LONG, i);
+                if (k != 0) {
+                    add(k);
+                }
+            }
+        }
+    }
+
+    // A base filter, the keys it was built from, sorted and distinct, and the deltas added
+    // since, all in the arena of the entry and freed with it
+    private static final class Generation {
+        final FilterHolder.Entry entry;
+        final MemorySegment keys;
+        final long keyCount;
+        final Delta delta;
+        // Set when the delta is frozen for a rebuild; takes the adds until the new base is published
+        volatile Delta next;
+
+        Generation(FilterHolder.Entry entry, MemorySegment keys, long keyCount, Delta delta) {
+            this.entry = entry;
+            this.keys = keys;
+            this.keyCount = keyCount;
+            this.delta = delta;
+        }
+    }
+
+    private final XorFilter.FilterType type;
+    private final int deltaThreshold;
+    private final FilterBuildService service;
+    private final AtomicReference<Generation> current;
+    // Serializes adds, rebuild starts and publications
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition published = lock.newCondition();
+    // The running rebuild, completed with the version it publishes; guarded by lock
+    private CompletableFuture<Long> pending;
+    private Throwable failure;
+
+    /**
+     * An empty filter.
+     */
+    public LayeredFilter(XorFilter.FilterType type, int deltaThreshold, FilterBuildService service) throws Throwable {
+        this(type, MemorySegment.NULL, 0, deltaThreshold, service);
+    }
+
+    /**
+     * Builds the base filter from the first {@code count} keys of {@code keys}, which are
+     * copied, and waits for it. Repeated keys are allowed.
+     *
+     * @param deltaThreshold number of added keys that starts a rebuild
+     * @param service        runs the constructions; it must outlive this filter
+     */
+    public LayeredFilter(XorFilter.FilterType type, MemorySegment keys, long count, int deltaThreshold,
+                         FilterBuildService service) throws Throwable {
+        if (deltaThreshold < 1 || deltaThreshold > MAX_DELTA_THRESHOLD) {
+            throw new IllegalArgumentException("deltaThreshold must be between 1 and " + MAX_DELTA_THRESHOLD);
+        }
+        XorFilter.checkKeys(keys, count);
+        this.type = type;
+        this.deltaThreshold = deltaThreshold;
+        this.service = service;
+        long[] sorted = keys.asSlice(0, count * 8).toArray(ValueLayout.JAVA_LONG_UNALIGNED);
+        Arrays.sort(sorted);
+        int distinct = 0;
+        for (int i = 0; i < sorted.length; i++) {
+            if (i == 0 || sorted[i] != sorted[i - 1]) {
+                sorted[distinct++] = sorted[i];
+            }
+        }
+        Arena arena = Arena.ofShared();
+        try {
+            MemorySegment log = arena.allocate(ValueLayout.JAVA_LONG, distinct);
+            MemorySegment.copy(sorted, 0, log, ValueLayout.JAVA_LONG, 0, distinct);
+            XorFilter.XorFilterInterface filter = join(build(log, distinct, arena));
+            this.current = new AtomicReference<>(new Generation(new FilterHolder.Entry(filter, arena, 0), log, distinct,
+                new Delta(arena, 2 * deltaThreshold)));
+        } catch (Throwable e) {
+            arena.close();
+            throw e;
+        }
+    }
+
+    // The filter is built from a copy, since populate may reorder its keys
+    private CompletableFuture<XorFilter.XorFilterInterface> build(MemorySegment log, long count, Arena arena)
+        throws InterruptedException {
+        Arena scratchArena = Arena.ofShared();
+        CompletableFuture<XorFilter.XorFilterInterface> future;
+        try {
+            MemorySegment scratch = scratchArena.allocate(ValueLayout.JAVA_LONG, count);
+            MemorySegment.copy(log, 0, scratch, 0, scratch.byteSize());
+            future = service.buildAsync(type, scratch, count, arena);
+        } catch (Throwable e) {
+            scratchArena.close();
+            throw e;
+        }
+        return future.whenComplete((filter, e) -> scratchArena.close());
+    }
+
+    private static <T> T join(CompletableFuture<T> future) throws Throwable {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            throw e.getCause();
+        }
+    }
+
+    // Pins the current generation; retries at most once per concurrent publication
+    private Generation pin() {
+        while (true) {
+            Generation generation = current.get();
+            if (generation == null) {
+                throw new IllegalStateException("Layered filter is closed");
+            }
+            if (generation.entry.tryAcquire()) {
+                return generation;
+            }
+        }
+    }
+
+    private static boolean inDeltas(Generation generation, long key) {
+        if (generation.delta.contains(key)) {
+            return true;
+        }
+        Delta next = generation.next;
+        return next != null && next.contains(key);
+    }
+
+    public boolean contains(long key) throws Throwable {
+        Generation generation = pin();
+        try {
+            return inDeltas(generation, key) || generation.entry.filter.contains(key);
+        } finally {
+            generation.entry.release();
+        }
+    }
+
+    /**
+     * Tests the UTF-8 encoding of {@code key}; see {@link KeyHasher}.
+     */
+    public boolean contains(CharSequence key) throws Throwable {
+        return contains(KeyHasher.hash(key));
+    }
+
+    /**
+     * Same as {@link XorFilter.XorFilterInterface#containsBatch(MemorySegment, long, MemorySegment)}:
+     * one native call on the base, then the keys it rejects are looked up in the deltas.
+     */
+    public long containsBatch(MemorySegment keys, long count, MemorySegment bitmapOut) throws Throwable {
+        Generation generation = pin();
+        try {
+            long hits = generation.entry.filter.containsBatch(keys, count, bitmapOut);
+            Delta next = generation.next;
+            if (generation.delta.size() == 0 && (next == null || next.size() == 0)) {
+                return hits;
+            }
+            for (long i = 0; i < count; i++) {
+                long word = bitmapOut.getAtIndex(ValueLayout.JAVA_LONG_UNALIGNED, i >>> 6);
+                if ((word & (1L << i)) == 0
+                    && inDeltas(generation, keys.getAtIndex(ValueLayout.JAVA_LONG_UNALIGNED, i))) {
+                    bitmapOut.setAtIndex(ValueLayout.JAVA_LONG_UNALIGNED, i >>> 6, word | (1L << i));
+                    hits++;
+                }
+            }
+            return hits;
+        } finally {
+            generation.entry.release();
+        }
+    }
+
+    /**
+     * Adds {@code key}; it is found by any query that starts after this call returns.
+     * Starts a rebuild when the delta reaches the threshold.
+     *
+     * @throws InterruptedException if interrupted while waiting for a rebuild to make room
+     * @throws IllegalStateException if the filter is closed, or the rebuild that was to make
+     *         room failed; a later add retries it
+     */
+    public void add(long key) throws InterruptedException {
+        lock.lock();
+        try {
+            while (true) {
+                Generation generation = generation();
+                if (inDeltas(generation, key)) {
+                    return;
+                }
+                Delta delta = generation.next != null ? generation.next : generation.delta;
+                if (!delta.isFull()) {
+                    delta.add(key);
+                    if (pending == null && (generation.next != null || delta.size() >= deltaThreshold)) {
+                        try {
+                            startRebuild(generation);
+                        } catch (RuntimeException e) {
+                            // the key is in; report the failure once the delta is full
+                            failure = e;
+                        }
+                    }
+                    return;
+                }
+                if (pending == null) {
+                    if (failure != null) {
+                        Throwable cause = failure;
+                        failure = null;
+                        throw new IllegalStateException("Rebuild of the layered filter failed", cause);
+                    }
+                    startRebuild(generation);
+                }
+                // a build that completes at once has already been published
+                if (pending != null) {
+                    published.await();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Adds the UTF-8 encoding of {@code key}; see {@link KeyHasher}.
+     */
+    public void add(CharSequence key) throws InterruptedException {
+        add(KeyHasher.hash(key));
+    }
+
+    /**
+     * Merges every key added so far into the base and waits for the new base to be published.
+     *
+     * @return the version of the base
+     */
+    public long rebuild() throws Throwable {
+        while (true) {
+            CompletableFuture<Long> rebuilt;
+            boolean merged;
+            lock.lock();
+            try {
+                // a running rebuild may not cover the latest adds
+                while (pending != null) {
+                    published.await();
+                }
+                Generation generation = generation();
+                if (generation.next == null && generation.delta.size() == 0) {
+                    return generation.entry.version;
+                }
+                // after a failed rebuild, the delta is already frozen and the keys added since need a second round
+                merged = generation.next == null;
+                rebuilt = startRebuild(generation);
+            } finally {
+                lock.unlock();
+            }
+            long version = join(rebuilt);
+            if (merged) {
+                return version;
+            }
+        }
+    }
+
+    // Freezes the delta, unless a failed rebuild already did, and builds the next base; under lock
+    private CompletableFuture<Long> startRebuild(Generation generation) throws InterruptedException {
+        if (generation.next == null) {
+            generation.next = new Delta(generation.entry.arena, 2 * deltaThreshold);
+        }
+        Arena arena = Arena.ofShared();
+        long[] added = generation.delta.sortedKeys();
+        CompletableFuture<XorFilter.XorFilterInterface> built;
+        MemorySegment log;
+        long count;
+        try {
+            log = arena.allocate(ValueLayout.JAVA_LONG, generation.keyCount + added.length);
+            count = merge(generation.keys, generation.keyCount, added, log);
+            built = build(log, count, arena);
+        } catch (Throwable e) {
+            arena.close();
+            throw e;
+        }
+        CompletableFuture<Long> rebuilt = new CompletableFuture<>();
+        pending = rebuilt;
+        built.whenComplete((filter, e) -> publish(generation, filter, arena, log, count, e, rebuilt));
+        return rebuilt;
+    }
+
+    // Merges the sorted, distinct keys of the base with the sorted keys added since into log,
+    // keeping one copy of a key found in both, and returns the number of keys written
+    private static long merge(MemorySegment base, long baseCount, long[] added, MemorySegment log) {
+        long n = 0;
+        long i = 0;
+        int j = 0;
+        while (i < baseCount || j < added.length) {
+            long key;
+            if (j == added.length || (i < baseCount && base.getAtIndex(ValueLayout.JAVA_LONG, i) <= added[j])) {
+                key = base.getAtIndex(ValueLayout.JAVA_LONG, i++);
+                if (j < added.length && added[j] == key) {
+                    j++;
+                }
+            } else {
+                key = added[j++];
+            }
+            log.setAtIndex(ValueLayout.JAVA_LONG, n++, key);
+        }
+        return n;
+    }
+
+    // Runs on the build thread once the next base is built, or failed to build
+    private void publish(Generation generation, XorFilter.XorFilterInterface filter, Arena arena, MemorySegment log,
+                         long count, Throwable e, CompletableFuture<Long> rebuilt) {
+        lock.lock();
+        try {
+            pending = null;
+            if (e instanceof CompletionException && e.getCause() != null) {
+                e = e.getCause();
+            }
+            if (e == null && current.get() != generation) {
+                e = new IllegalStateException("Layered filter is closed");
+                filter.close();
+            }
+            if (e != null) {
+                arena.close();
+                failure = e;
+                rebuilt.completeExceptionally(e);
+                return;
+            }
+            failure = null;
+            Delta delta = new Delta(arena, 2 * deltaThreshold);
+            delta.addAll(generation.next);
+            Generation next = new Generation(new FilterHolder.Entry(filter, arena, generation.entry.version + 1),
+                log, count, delta);
+            current.set(next);
+            generation.entry.retire();
+            rebuilt.complete(next.entry.version);
+        } finally {
+            published.signalAll();
+            lock.unlock();
+        }
+    }
+
+    private Generation generation() {
+        Generation generation = current.get();
+        if (generation == null) {
+            throw new IllegalStateException("Layered filter is closed");
+        }
+        return generation;
+    }
+
+    /**
+     * Number of keys added since the base was built.
+     */
+    public int deltaSize() {
+        Generation generation = generation();
+        Delta next = generation.next;
+        return generation.delta.size() + (next == null ? 0 : next.size());
+    }
+
+    // Number of distinct keys the base was built from
+    long keyCount() {
+        return generation().keyCount;
+    }
+
+    /**
+     * Version of the base filter, incremented by every rebuild.
+     */
+    public long version() {
+        return generation().entry.version;
+    }
+
+    /**
+     * Frees the filter once in-flight queries have left; a running rebuild is discarded.
+     * Further calls throw {@link IllegalStateException}.
+     */
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            Generation generation = current.getAndSet(null);
+            if (generation != null) {
+                generation.entry.retire();
+            }
+            published.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package me.lemire.xfuse;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.foreign.Arena;
+import java.lang.foreign.FunctionDescriptor;
+import java.lang.foreign.Linker;
+import java.lang.foreign.SymbolLookup;
+import java.lang.foreign.ValueLayout;
+import java.lang.invoke.MethodHandle;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Locale;
+import java.util.Optional;
+
+/**
+ * Finds and loads the xfuse native library.
+ *
+ * The library is looked up first as a class path resource,
+ * {@code native/<os>-<arch>/libxfuse.so} (or {@code .dylib}), which the build places in
+ * the jar. The resource is extracted once to a cache directory named after its content
+ * hash, {@code ~/.cache/xfuse} by default or the {@code xfuse.cache.dir} system property,
+ * and loaded from there; concurrent JVMs share the extracted file. Failing that, the
+ * library is searched on {@code java.library.path}.
+ *
+ * Among the builds found (baseline, AVX2, AVX-512), the best one that the CPU supports is
+ * loaded, unless the {@code xfuse.variant} system property names one. A failure to load
+ * is not reported here: it becomes the cause of the error thrown when a native function
+ * is first bound.
+ */
+final class NativeLibrary {
+    private static final String NAME = "xfuse";
+
+    // From the most to the least demanding; xfuse_cpu_level() tells which ones the CPU can run
+    private static final List<String> VARIANTS = List.of("avx512", "avx2", "baseline");
+    private static final String VARIANT_PROPERTY = "xfuse.variant";
+    private static final String CACHE_PROPERTY = "xfuse.cache.dir";
+
+    private record Loaded(SymbolLookup lookup, String variant) {
+    }
+
+    static final SymbolLookup lookup;
+    static final String variant;
+    // Why the library could not be loaded, or null
+    static final Throwable failure;
+
+    static {
+        Loaded loaded = null;
+        Throwable error = null;
+        try {
+            loaded = load();
+        } catch (Throwable e) {
+            error = e;
+        }
+        lookup = loaded != null ? loaded.lookup() : name -> Optional.empty();
+        variant = loaded != null ? loaded.variant() : null;
+        failure = error;
+    }
+
+    private NativeLibrary() {
+    }
+
+    /**
+     * Platform directory of the library resources, such as {@code linux-x86_64}; the
+     * build uses the same names.
+     */
+    static String platform() {
+        String os = System.getProperty("os.name").toLowerCase(Locale.ROOT);
+        if (os.startsWith("mac")) {
+            os = "macos";
+        } else if (os.startsWith("windows")) {
+            os = "windows";
+        }
+        String arch = System.getProperty("os.arch");
+        if (arch.equals("amd64")) {
+            arch = "x86_64";
+        }
+        return os + "-" + arch;
+    }
+
+    private static String libraryName(String variant) {
+        return variant.equals("baseline") ? NAME : NAME + "-" + variant;
+    }
+
+    /*
+     * The file of a build of the library, or null if there is none: extracted from the
+     * class path if bundled, else found on java.library.path. All builds come from the
+     * same place, so that they match.
+     */
+    private static Path locate(String variant, boolean bundled) throws IOException {
+        String file = System.mapLibraryName(libraryName(variant));
+        if (bundled) {
+            return extract("native/" + platform() + "/" + file, file);
+        }
+        for (String dir : System.getProperty("java.library.path", "").split(File.pathSeparator)) {
+            if (!dir.isEmpty()) {
+                Path candidate = Path.of(dir, file);
+                if (Files.isRegularFile(candidate)) {
+                    return candidate;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static Path extract(String resource, String file) throws IOException {
+        byte[] bytes;
+        try (InputStream in = NativeLibrary.class.getClassLoader().getResourceAsStream(resource)) {
+            if (in == null) {
+                return null;
+            }
+            bytes = in.readAllBytes();
+        }
+        String digest;
+        try {
+            digest = HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(bytes), 0, 16);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        // A new build lands in a new directory, so a file that exists is complete and current
+        Path dir = cacheDirectory().resolve(digest);
+        Path target = dir.resolve(file);
+        if (Files.isRegularFile(target) && Files.size(target) == bytes.length) {
+            return target;
+        }
+        Files.createDirectories(dir);
+        Path temp = Files.createTempFile(dir, file, ".tmp");
+        try {
+            Files.write(temp, bytes);
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        return target;
+    }
+
+    private static Path cacheDirectory() {
+        String dir = System.getProperty(CACHE_PROPERTY);
+        if (dir != null) {
+            return Path.of(dir);
+        }
+        String xdg = System.getenv("XDG_CACHE_HOME");
+        return (xdg != null && !xdg.isEmpty() ? Path.of(xdg) : Path.of(System.getProperty("user.home"), ".cache"))
+            .resolve(NAME);
+    }
+
+    private static Loaded load() throws Throwable {
+        boolean bundled = true;
+        Path baseline = locate("baseline", bundled);
+        if (baseline == null) {
+            bundled = false;
+            baseline = locate("baseline", bundled);
+        }
+        if (baseline == null) {
+            throw new UnsatisfiedLinkError("No " + System.mapLibraryName(NAME) + " for " + platform()
+                + " in the class path (native/" + platform() + "/) or in java.library.path: "
+                + System.getProperty("java.library.path"));
+        }
+        String wanted = System.getProperty(VARIANT_PROPERTY, "auto");
+        if (!wanted.equals("auto")) {
+            if (!VARIANTS.contains(wanted)) {
+                throw new IllegalArgumentException("Unknown " + VARIANT_PROPERTY + ": " + wanted);
+            }
+            Path path = locate(wanted, bundled);
+            if (path == null) {
+                throw new UnsatisfiedLinkError("No " + wanted + " build of the native library for " + platform());
+            }
+            return new Loaded(SymbolLookup.libraryLookup(path, Arena.global()), wanted);
+        }
+        int level;
+        try (Arena probeArena = Arena.ofConfined()) {
+            MethodHandle cpuLevel = Linker.nativeLinker().downcallHandle(
+                SymbolLookup.libraryLookup(baseline, probeArena).find("xfuse_cpu_level").orElseThrow(),
+                FunctionDescriptor.of(ValueLayout.JAVA_INT));
+            level = (int) cpuLevel.invokeExact();
+        }
+        // VARIANTS[0] needs level 2, VARIANTS[1] level 1
+        for (int i = Math.max(0, VARIANTS.size() - 1 - level); i < VARIANTS.size(); i++) {
+            Path path = VARIANTS.get(i).equals("baseline") ? baseline : locate(VARIANTS.get(i), bundled);
+            if (path != null) {
+                return new Loaded(SymbolLookup.libraryLookup(path, Arena.global()), VARIANTS.get(i));
+            }
+        }
+        throw new AssertionError();
+    }
+}
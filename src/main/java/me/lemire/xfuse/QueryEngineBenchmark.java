@@ -0,0 +1,85 @@
+package me.lemire.xfuse;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the query engines of the binary fuse filters: {@code contains} issues one query
+ * at a time (a downcall per key with the native engine), {@code containsBatch} hands the
+ * whole query array to the engine. Half of the queries are keys of the set.
+ *
+ * Requires {@code --add-modules jdk.incubator.vector} for the VECTOR engine.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+@State(Scope.Thread)
+public class QueryEngineBenchmark {
+    static final int QUERIES = 1 << 20;
+
+    @Param({"BINARY_FUSE8", "BINARY_FUSE16"})
+    XorFilter.FilterType type;
+
+    @Param({"1000000", "10000000"})
+    int size;
+
+    @Param({"NATIVE", "JAVA", "VECTOR"})
+    XorFilter.QueryEngine engine;
+
+    Arena arena;
+    XorFilter.XorFilterInterface filter;
+    MemorySegment queries;
+    MemorySegment bitmap;
+
+    @Setup
+    public void setup() throws Throwable {
+        arena = Arena.ofShared();
+        SplittableRandom random = new SplittableRandom(1234);
+        MemorySegment keys = arena.allocate(ValueLayout.JAVA_LONG, size);
+        for (long i = 0; i < size; i++) {
+            keys.setAtIndex(ValueLayout.JAVA_LONG, i, random.nextLong());
+        }
+        queries = arena.allocate(ValueLayout.JAVA_LONG, QUERIES);
+        for (long i = 0; i < QUERIES; i++) {
+            long key = random.nextBoolean() ? keys.getAtIndex(ValueLayout.JAVA_LONG, random.nextInt(size)) : random.nextLong();
+            queries.setAtIndex(ValueLayout.JAVA_LONG, i, key);
+        }
+        bitmap = arena.allocate(ValueLayout.JAVA_LONG, QUERIES / 64);
+        filter = type.newFilter(arena);
+        if (!filter.allocate(size) || !filter.populate(keys, size)) {
+            throw new RuntimeException("Failed to build filter");
+        }
+        filter.setQueryEngine(engine);
+    }
+
+    @TearDown
+    public void tearDown() {
+        filter.close();
+        arena.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(QUERIES)
+    public int contains() throws Throwable {
+        int hits = 0;
+        for (long i = 0; i < QUERIES; i++) {
+            if (filter.contains(queries.getAtIndex(ValueLayout.JAVA_LONG, i))) {
+                hits++;
+            }
+        }
+        return hits;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(QUERIES)
+    public long containsBatch() throws Throwable {
+        return filter.containsBatch(queries, QUERIES, bitmap);
+    }
+}
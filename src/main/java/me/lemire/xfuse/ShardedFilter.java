@@ -0,0 +1,317 @@
+package me.lemire.xfuse;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.IntConsumer;
+
+/**
+ * A filter split into 2^shardBits independent sub-filters of the same type.
+ *
+ * Keys are routed by the high bits of a hash that is independent of the one used
+ * inside the sub-filters, so each query is a shift followed by a single probe. The
+ * sub-filters are built concurrently on a {@link ForkJoinPool}, and since each one only
+ * holds its share of the keys, the total number of keys may exceed 2^32.
+ *
+ * The sub-filters live in a shared arena owned by this filter, replaced on each populate
+ * and released by {@link #close()}, so the filter may be queried from any thread.
+ */
+public class ShardedFilter implements XorFilter.XorFilterInterface {
+    // Added to keys before hashing so that routing does not correlate with the sub-filter hashes
+    private static final long ROUTING_SEED = 0x5bd1e9955bd1e995L;
+    private static final int MAX_SHARD_BITS = 16;
+    // Keys per partition task, below which forking costs more than it saves
+    private static final long MIN_TASK_KEYS = 1 << 16;
+    // Never started: a segment it may access is not confined to the calling thread
+    private static final Thread OTHER_THREAD = Thread.ofVirtual().unstarted(() -> { });
+
+    private final XorFilter.FilterType type;
+    private final int shardBits;
+    private final ForkJoinPool pool;
+    private Arena shardArena;
+    private final XorFilter.XorFilterInterface[] shards;
+    private XorFilter.QueryEngine queryEngine = XorFilter.QueryEngine.NATIVE;
+    private long size = -1;
+
+    public ShardedFilter(XorFilter.FilterType type, int shardBits) {
+        this(type, shardBits, ForkJoinPool.commonPool());
+    }
+
+    public ShardedFilter(XorFilter.FilterType type, int shardBits, ForkJoinPool pool) {
+        if (shardBits < 1 || shardBits > MAX_SHARD_BITS) {
+            throw new IllegalArgumentException("shardBits must be between 1 and " + MAX_SHARD_BITS);
+        }
+        this.type = type;
+        this.shardBits = shardBits;
+        this.pool = pool;
+        this.shards = new XorFilter.XorFilterInterface[1 << shardBits];
+    }
+
+    public int shardCount() {
+        return shards.length;
+    }
+
+    /**
+     * Index of the sub-filter responsible for {@code key}.
+     */
+    public int shardOf(long key) {
+        return (int) (XorFilter.murmur64(key + ROUTING_SEED) >>> (64 - shardBits));
+    }
+
+    public boolean allocate(int size) {
+        return allocate((long) size);
+    }
+
+    /**
+     * Records the number of keys that the next populate call will receive.
+     * Sub-filters are sized during populate, once the keys have been partitioned.
+     */
+    public boolean allocate(long size) {
+        if (size < 0) {
+            return false;
+        }
+        this.size = size;
+        return true;
+    }
+
+    public boolean populate(long[] keys) throws Throwable {
+        return populate(MemorySegment.ofArray(keys), keys.length);
+    }
+
+    /**
+     * Partitions the keys by shard, then builds the sub-filters in parallel. Each partition
+     * task counts the keys of its range per shard, and after a prefix sum scatters them to
+     * its own offsets, so both passes run on the pool. A segment confined to the calling
+     * thread is partitioned on that thread. {@code keys} is left untouched.
+     */
+    @Override
+    public boolean populate(MemorySegment keys, long count) throws Throwable {
+        if (count != size) {
+            return false;
+        }
+        if (keys.byteSize() < count * 8) {
+            throw new IndexOutOfBoundsException("key segment holds fewer than " + count + " keys");
+        }
+        closeShards();
+        shardArena = Arena.ofShared();
+
+        int taskCount = keys.isAccessibleBy(OTHER_THREAD)
+            ? (int) Math.max(1, Math.min(pool.getParallelism(), count / MIN_TASK_KEYS)) : 1;
+        long taskKeys = (count + taskCount - 1) / taskCount;
+        try (Arena scatterArena = Arena.ofShared()) {
+            // the shard of each key, so that it is hashed once
+            MemorySegment routes = scatterArena.allocate(ValueLayout.JAVA_SHORT, Math.max(count, 1));
+            long[][] offsets = new long[taskCount][];
+            runTasks(taskCount, t -> {
+                long[] histogram = new long[shards.length];
+                for (long i = t * taskKeys, end = Math.min(count, i + taskKeys); i < end; i++) {
+                    int s = shardOf(keys.getAtIndex(ValueLayout.JAVA_LONG_UNALIGNED, i));
+                    routes.setAtIndex(ValueLayout.JAVA_SHORT, i, (short) s);
+                    histogram[s]++;
+                }
+                offsets[t] = histogram;
+            });
+
+            long[] start = new long[shards.length + 1];
+            for (int s = 0; s < shards.length; s++) {
+                long next = start[s];
+                for (long[] histogram : offsets) {
+                    long n = histogram[s];
+                    histogram[s] = next;
+                    next += n;
+                }
+                if (next - start[s] > Integer.MAX_VALUE) {
+                    throw new IllegalArgumentException("Shard " + s + " would hold " + (next - start[s])
+                        + " keys, use more shard bits");
+                }
+                start[s + 1] = next;
+            }
+
+            MemorySegment partitioned = scatterArena.allocate(ValueLayout.JAVA_LONG, Math.max(count, 1));
+            runTasks(taskCount, t -> {
+                long[] next = offsets[t];
+                for (long i = t * taskKeys, end = Math.min(count, i + taskKeys); i < end; i++) {
+                    int s = Short.toUnsignedInt(routes.getAtIndex(ValueLayout.JAVA_SHORT, i));
+                    partitioned.setAtIndex(ValueLayout.JAVA_LONG, next[s]++,
+                        keys.getAtIndex(ValueLayout.JAVA_LONG_UNALIGNED, i));
+                }
+            });
+
+            List<ForkJoinTask<Boolean>> tasks = new ArrayList<>();
+            for (int s = 0; s < shards.length; s++) {
+                long n = start[s + 1] - start[s];
+                if (n == 0) {
+                    continue; // an empty shard answers false; xor filters cannot be built from zero keys
+                }
+                XorFilter.XorFilterInterface shard = type.newFilter(shardArena);
+                shards[s] = shard;
+                MemorySegment shardKeys = partitioned.asSlice(start[s] * 8, n * 8);
+                tasks.add(pool.submit(() -> buildShard(shard, shardKeys, n)));
+            }
+            boolean ok = true;
+            for (ForkJoinTask<Boolean> task : tasks) {
+                ok &= task.join();
+            }
+            return ok;
+        }
+    }
+
+    // Runs body for 0..taskCount-1 on the pool, or on the calling thread for a single task
+    private void runTasks(int taskCount, IntConsumer body) {
+        if (taskCount == 1) {
+            body.accept(0);
+            return;
+        }
+        List<ForkJoinTask<?>> tasks = new ArrayList<>(taskCount);
+        for (int t = 0; t < taskCount; t++) {
+            int task = t;
+            tasks.add(pool.submit(() -> body.accept(task)));
+        }
+        // every task is joined before the scatter arena may be closed
+        RuntimeException failure = null;
+        for (ForkJoinTask<?> task : tasks) {
+            try {
+                task.join();
+            } catch (RuntimeException e) {
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private boolean buildShard(XorFilter.XorFilterInterface shard, MemorySegment keys, long count) {
+        try {
+            boolean ok = shard.allocate((int) count) && shard.populate(keys, count);
+            shard.setQueryEngine(queryEngine);
+            return ok;
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new RuntimeException("Failed to build " + type + " shard", e);
+        }
+    }
+
+    public boolean contains(long key) throws Throwable {
+        XorFilter.XorFilterInterface shard = shards[shardOf(key)];
+        return shard != null && shard.contains(key);
+    }
+
+    /**
+     * Groups each run of keys by shard, so that every shard answers its keys with a single
+     * containsBatch call, and scatters the answers back into {@code bitmapOut}.
+     */
+    @Override
+    public long containsBatch(MemorySegment keys, long count, MemorySegment bitmapOut) throws Throwable {
+        if (keys.byteSize() < count * 8 || bitmapOut.byteSize() < ((count + 63) >>> 6) * 8) {
+            throw new IndexOutOfBoundsException("segments too small for " + count + " keys");
+        }
+        // at least one key per shard on average, so that routing is not dominated by the shard count
+        int chunk = Math.max(XorFilter.BATCH_CHUNK, shards.length);
+        int[] routes = new int[chunk];
+        int[] order = new int[chunk];
+        int[] end = new int[shards.length + 1];
+        long[] words = new long[chunk >>> 6];
+        long matches = 0;
+        try (Arena scratch = Arena.ofConfined()) {
+            MemorySegment grouped = scratch.allocate(ValueLayout.JAVA_LONG, Math.max(1, Math.min(chunk, count)));
+            MemorySegment bits = scratch.allocate(ValueLayout.JAVA_LONG, words.length);
+            for (long base = 0; base < count; base += chunk) {
+                int n = (int) Math.min(chunk, count - base);
+                Arrays.fill(end, 0);
+                for (int i = 0; i < n; i++) {
+                    int s = shardOf(keys.getAtIndex(ValueLayout.JAVA_LONG_UNALIGNED, base + i));
+                    routes[i] = s;
+                    end[s + 1]++;
+                }
+                for (int s = 0; s < shards.length; s++) {
+                    end[s + 1] += end[s];
+                }
+                // placing a key advances end[s], which ends up past the last key of shard s
+                for (int i = 0; i < n; i++) {
+                    int position = end[routes[i]]++;
+                    grouped.setAtIndex(ValueLayout.JAVA_LONG, position,
+                        keys.getAtIndex(ValueLayout.JAVA_LONG_UNALIGNED, base + i));
+                    order[position] = i;
+                }
+
+                Arrays.fill(words, 0);
+                int from = 0;
+                for (int s = 0; s < shards.length; s++) {
+                    int length = end[s] - from;
+                    if (length > 0 && shards[s] != null) {
+                        shards[s].containsBatch(grouped.asSlice(from * 8L, length * 8L), length, bits);
+                        for (int w = 0; w << 6 < length; w++) {
+                            long word = bits.getAtIndex(ValueLayout.JAVA_LONG, w);
+                            if (length - (w << 6) < 64) {
+                                word &= (1L << (length - (w << 6))) - 1;
+                            }
+                            while (word != 0) {
+                                int i = order[from + (w << 6) + Long.numberOfTrailingZeros(word)];
+                                words[i >>> 6] |= 1L << i;
+                                word &= word - 1;
+                            }
+                        }
+                    }
+                    from = end[s];
+                }
+                for (int w = 0; w << 6 < n; w++) {
+                    bitmapOut.setAtIndex(ValueLayout.JAVA_LONG_UNALIGNED, (base >>> 6) + w, words[w]);
+                    matches += Long.bitCount(words[w]);
+                }
+            }
+        }
+        return matches;
+    }
+
+    public long sizeInBytes() throws Throwable {
+        long bytes = 0;
+        for (XorFilter.XorFilterInterface shard : shards) {
+            if (shard != null) {
+                bytes += shard.sizeInBytes();
+            }
+        }
+        return bytes;
+    }
+
+    @Override
+    public XorFilter.QueryEngine getQueryEngine() {
+        return queryEngine;
+    }
+
+    @Override
+    public void setQueryEngine(XorFilter.QueryEngine engine) {
+        for (XorFilter.XorFilterInterface shard : shards) {
+            if (shard != null) {
+                shard.setQueryEngine(engine);
+            }
+        }
+        this.queryEngine = engine;
+    }
+
+    private void closeShards() {
+        for (int s = 0; s < shards.length; s++) {
+            if (shards[s] != null) {
+                shards[s].close();
+                shards[s] = null;
+            }
+        }
+        if (shardArena != null) {
+            shardArena.close();
+            shardArena = null;
+        }
+    }
+
+    @Override
+    public void close() {
+        closeShards();
+    }
+}
@@ -13,12 +13,21 @@ public class Statistics {
         int[] sizes = {1_000, 10_000, 100_000, 1_000_000, 10_000_000};
 
         // Filter factories in the desired column order
-        List<String> names = List.of("Xor8", "BinaryFuse8", "Xor16", "BinaryFuse16");
+        List<String> names = List.of("Xor8", "BinaryFuse8", "BinaryFuse8 4-wise", "Xor16", "BinaryFuse16",
+            "BinaryFuse16 4-wise", "BinaryFuse32", "BinaryFuse 12-bit");
+        List<XorFilter.FilterType> types = List.of(XorFilter.FilterType.XOR8, XorFilter.FilterType.BINARY_FUSE8,
+            XorFilter.FilterType.BINARY_FUSE8_4WISE, XorFilter.FilterType.XOR16, XorFilter.FilterType.BINARY_FUSE16,
+            XorFilter.FilterType.BINARY_FUSE16_4WISE, XorFilter.FilterType.BINARY_FUSE32,
+            XorFilter.FilterType.BINARY_FUSE_BITS);
         List<Function<Arena, XorFilter.XorFilterInterface>> factories = List.of(
             arena -> new XorFilter.Xor8Filter(arena),
             arena -> new XorFilter.BinaryFuse8Filter(arena),
+            arena -> new XorFilter.BinaryFuse8FourWiseFilter(arena),
             arena -> new XorFilter.Xor16Filter(arena),
-            arena -> new XorFilter.BinaryFuse16Filter(arena)
+            arena -> new XorFilter.BinaryFuse16Filter(arena),
+            arena -> new XorFilter.BinaryFuse16FourWiseFilter(arena),
+            arena -> new XorFilter.BinaryFuse32Filter(arena),
+            arena -> XorFilter.BinaryFuseFilter.builder().fingerprintBits(12).build(arena)
         );
 
         List<double[]> bitsTable = new ArrayList<>();
@@ -99,6 +108,14 @@ public class Statistics {
             row.append("|");
             System.out.println(row.toString());
         }
+        // Theoretical rate, 2^-b for b-bit fingerprints
+        StringBuilder expected = new StringBuilder("| expected ");
+        for (XorFilter.FilterType type : types) {
+            double rate = type == XorFilter.FilterType.BINARY_FUSE_BITS ? Math.scalb(1.0, -12) : type.falsePositiveRate();
+            expected.append("| ").append(String.format("%.4f%%", rate * 100.0)).append(" ");
+        }
+        expected.append("|");
+        System.out.println(expected.toString());
     }
 
     private static void testFilter(String filterName, Function<Arena, XorFilter.XorFilterInterface> filterFactory, long[] keys, int numElements) {
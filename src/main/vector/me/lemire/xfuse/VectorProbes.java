@@ -0,0 +1,155 @@
+package me.lemire.xfuse;
+
+import jdk.incubator.vector.LongVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteOrder;
+
+/**
+ * Batch queries of the binary fuse filters on the Java Vector API, for
+ * {@link XorFilter.QueryEngine#VECTOR}.
+ *
+ * Keys are processed one vector at a time (4 lanes with AVX2, 8 with AVX-512): the hash,
+ * the fingerprint and the three locations are computed lane-wise, the fingerprints are
+ * loaded, and the comparison yields a mask that becomes bits of the output bitmap. The
+ * Vector API cannot gather from a memory segment, so the loads themselves are scalar.
+ * Only this class depends on the incubator module. It lives in its own source root and
+ * is compiled by the compile-vector execution of pom.xml, the only one that adds the
+ * module; XorFilter looks it up when the engine is first used rather than linking it.
+ */
+final class VectorProbes {
+    private static final VectorSpecies<Long> SPECIES = LongVector.SPECIES_PREFERRED;
+    private static final int LANES = SPECIES.length();
+
+    private VectorProbes() {
+    }
+
+    // murmur64(key + seed) for a vector of keys
+    private static LongVector hash(MemorySegment keys, long index, long seed) {
+        LongVector h = LongVector.fromMemorySegment(SPECIES, keys, index * 8, ByteOrder.nativeOrder()).add(seed);
+        h = h.lanewise(VectorOperators.XOR, h.lanewise(VectorOperators.LSHR, 33)).mul(0xff51afd7ed558ccdL);
+        h = h.lanewise(VectorOperators.XOR, h.lanewise(VectorOperators.LSHR, 33)).mul(0xc4ceb9fe1a85ec53L);
+        return h.lanewise(VectorOperators.XOR, h.lanewise(VectorOperators.LSHR, 33));
+    }
+
+    /*
+     * The three locations of binary_fuse8_hash_batch, stored in locations[0, 3 * LANES).
+     * h0 is the high word of hash * segmentCountLength; since segmentCountLength fits in
+     * 32 bits, it is computed exactly from two 32x32-bit products.
+     */
+    private static void locations(LongVector hash, int segmentLength, int segmentLengthMask,
+                                  long segmentCountLength, long[] locations) {
+        LongVector low = hash.and(0xFFFFFFFFL).mul(segmentCountLength).lanewise(VectorOperators.LSHR, 32);
+        LongVector h0 = hash.lanewise(VectorOperators.LSHR, 32).mul(segmentCountLength).add(low)
+            .lanewise(VectorOperators.LSHR, 32);
+        LongVector h1 = h0.add(segmentLength)
+            .lanewise(VectorOperators.XOR, hash.lanewise(VectorOperators.LSHR, 18).and(segmentLengthMask));
+        LongVector h2 = h0.add(2L * segmentLength)
+            .lanewise(VectorOperators.XOR, hash.and(segmentLengthMask));
+        h0.intoArray(locations, 0);
+        h1.intoArray(locations, LANES);
+        h2.intoArray(locations, 2 * LANES);
+    }
+
+    // Bits of the lanes where (hash ^ hash >>> 32 ^ xored) & fingerprintMask is zero
+    private static long matches(LongVector hash, long[] xored, long fingerprintMask) {
+        return hash.lanewise(VectorOperators.XOR, hash.lanewise(VectorOperators.LSHR, 32))
+            .lanewise(VectorOperators.XOR, LongVector.fromArray(SPECIES, xored, 0))
+            .and(fingerprintMask)
+            .compare(VectorOperators.EQ, 0)
+            .toLong();
+    }
+
+    static long containsBatch(XorFilter.BinaryFuse8Probe probe, MemorySegment keys, long count, MemorySegment bitmapOut) {
+        MemorySegment fingerprints = probe.fingerprints;
+        long[] locations = new long[3 * LANES];
+        long[] xored = new long[LANES];
+        long matches = 0;
+        for (long base = 0; base < count; base += 64) {
+            int n = (int) Math.min(64, count - base);
+            long word = 0;
+            int i = 0;
+            for (; i + LANES <= n; i += LANES) {
+                LongVector hash = hash(keys, base + i, probe.seed);
+                locations(hash, probe.segmentLength, probe.segmentLengthMask, probe.segmentCountLength, locations);
+                for (int j = 0; j < LANES; j++) {
+                    xored[j] = fingerprints.get(ValueLayout.JAVA_BYTE, locations[j])
+                        ^ fingerprints.get(ValueLayout.JAVA_BYTE, locations[LANES + j])
+                        ^ fingerprints.get(ValueLayout.JAVA_BYTE, locations[2 * LANES + j]);
+                }
+                word |= matches(hash, xored, 0xFF) << i;
+            }
+            for (; i < n; i++) {
+                if (probe.contains(keys.getAtIndex(ValueLayout.JAVA_LONG_UNALIGNED, base + i))) {
+                    word |= 1L << i;
+                }
+            }
+            bitmapOut.setAtIndex(ValueLayout.JAVA_LONG_UNALIGNED, base >>> 6, word);
+            matches += Long.bitCount(word);
+        }
+        return matches;
+    }
+
+    static long containsBatch(XorFilter.BinaryFuse16Probe probe, MemorySegment keys, long count, MemorySegment bitmapOut) {
+        MemorySegment fingerprints = probe.fingerprints;
+        long[] locations = new long[3 * LANES];
+        long[] xored = new long[LANES];
+        long matches = 0;
+        for (long base = 0; base < count; base += 64) {
+            int n = (int) Math.min(64, count - base);
+            long word = 0;
+            int i = 0;
+            for (; i + LANES <= n; i += LANES) {
+                LongVector hash = hash(keys, base + i, probe.seed);
+                locations(hash, probe.segmentLength, probe.segmentLengthMask, probe.segmentCountLength, locations);
+                for (int j = 0; j < LANES; j++) {
+                    xored[j] = fingerprints.getAtIndex(ValueLayout.JAVA_SHORT, locations[j])
+                        ^ fingerprints.getAtIndex(ValueLayout.JAVA_SHORT, locations[LANES + j])
+                        ^ fingerprints.getAtIndex(ValueLayout.JAVA_SHORT, locations[2 * LANES + j]);
+                }
+                word |= matches(hash, xored, 0xFFFF) << i;
+            }
+            for (; i < n; i++) {
+                if (probe.contains(keys.getAtIndex(ValueLayout.JAVA_LONG_UNALIGNED, base + i))) {
+                    word |= 1L << i;
+                }
+            }
+            bitmapOut.setAtIndex(ValueLayout.JAVA_LONG_UNALIGNED, base >>> 6, word);
+            matches += Long.bitCount(word);
+        }
+        return matches;
+    }
+
+    static long containsBatch(XorFilter.BinaryFuse32Probe probe, MemorySegment keys, long count, MemorySegment bitmapOut) {
+        MemorySegment fingerprints = probe.fingerprints;
+        long[] locations = new long[3 * LANES];
+        long[] xored = new long[LANES];
+        long matches = 0;
+        for (long base = 0; base < count; base += 64) {
+            int n = (int) Math.min(64, count - base);
+            long word = 0;
+            int i = 0;
+            for (; i + LANES <= n; i += LANES) {
+                LongVector hash = hash(keys, base + i, probe.seed);
+                locations(hash, probe.segmentLength, probe.segmentLengthMask, probe.segmentCountLength, locations);
+                for (int j = 0; j < LANES; j++) {
+                    xored[j] = fingerprints.getAtIndex(ValueLayout.JAVA_INT, locations[j])
+                        ^ fingerprints.getAtIndex(ValueLayout.JAVA_INT, locations[LANES + j])
+                        ^ fingerprints.getAtIndex(ValueLayout.JAVA_INT, locations[2 * LANES + j]);
+                }
+                word |= matches(hash, xored, 0xFFFFFFFFL) << i;
+            }
+            for (; i < n; i++) {
+                if (probe.contains(keys.getAtIndex(ValueLayout.JAVA_LONG_UNALIGNED, base + i))) {
+                    word |= 1L << i;
+                }
+            }
+            bitmapOut.setAtIndex(ValueLayout.JAVA_LONG_UNALIGNED, base >>> 6, word);
+            matches += Long.bitCount(word);
+        }
+        return matches;
+    }
+}
@@ -0,0 +1,141 @@
+package me.lemire.xfuse;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.util.SplittableRandom;
+
+public class BinaryFuseRetrievalTest {
+
+    @Test
+    public void testByteAndShortValues() throws Throwable {
+        SplittableRandom random = new SplittableRandom(1);
+        long[] keys = random.longs(200_000).toArray();
+        byte[] bytes = new byte[keys.length];
+        short[] shorts = new short[keys.length];
+        random.nextBytes(bytes);
+        for (int i = 0; i < shorts.length; i++) {
+            shorts[i] = (short) random.nextInt();
+        }
+        try (Arena arena = Arena.ofConfined();
+             BinaryFuseRetrieval small = BinaryFuseRetrieval.build(arena, keys, bytes);
+             BinaryFuseRetrieval wide = BinaryFuseRetrieval.build(arena, keys, shorts)) {
+            assertEquals(8, small.valueBits());
+            assertEquals(16, wide.valueBits());
+            for (int i = 0; i < keys.length; i++) {
+                assertEquals(bytes[i], (byte) small.get(keys[i]));
+                assertEquals(shorts[i], (short) wide.get(keys[i]));
+            }
+            assertTrue(small.sizeInBytes() * 8.0 / keys.length < 8 * 1.14 + 1);
+        }
+    }
+
+    @Test
+    public void testValueWidths() throws Throwable {
+        SplittableRandom random = new SplittableRandom(2);
+        long[] keys = random.longs(100_000).toArray();
+        for (int bits : new int[] {1, 5, 13, 24, 32}) {
+            int[] values = new int[keys.length];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = bits == 32 ? random.nextInt() : random.nextInt(1 << bits);
+            }
+            try (Arena arena = Arena.ofConfined();
+                 BinaryFuseRetrieval retrieval = BinaryFuseRetrieval.build(arena, keys, values, bits)) {
+                MemorySegment keysSegment = arena.allocateFrom(ValueLayout.JAVA_LONG, keys);
+                MemorySegment out = arena.allocate(ValueLayout.JAVA_INT, keys.length);
+                retrieval.getBatch(keysSegment, keys.length, out);
+                for (int i = 0; i < keys.length; i++) {
+                    assertEquals(values[i], retrieval.get(keys[i]), "bits " + bits);
+                    assertEquals(values[i], out.getAtIndex(ValueLayout.JAVA_INT, i), "bits " + bits);
+                }
+
+                retrieval.setQueryEngine(XorFilter.QueryEngine.JAVA);
+                out.fill((byte) 0);
+                retrieval.getBatch(keysSegment, keys.length, out);
+                for (int i = 0; i < keys.length; i++) {
+                    assertEquals(values[i], retrieval.get(keys[i]), "bits " + bits);
+                    assertEquals(values[i], out.getAtIndex(ValueLayout.JAVA_INT, i), "bits " + bits);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testGetBatchOnHeapArrays() throws Throwable {
+        long[] keys = new SplittableRandom(3).longs(3 * 4096 + 5).toArray();
+        int[] values = new int[keys.length];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = i & 0xFFF;
+        }
+        try (Arena arena = Arena.ofConfined();
+             BinaryFuseRetrieval retrieval = BinaryFuseRetrieval.build(arena, keys, values, 12)) {
+            int[] out = new int[keys.length];
+            retrieval.getBatch(MemorySegment.ofArray(keys), keys.length, MemorySegment.ofArray(out));
+            assertArrayEquals(values, out);
+        }
+    }
+
+    @Test
+    public void testRepeatedKeys() throws Throwable {
+        long[] keys = {10, 20, 30, 10, 40};
+        byte[] values = {1, 2, 3, 1, 4};
+        try (Arena arena = Arena.ofConfined();
+             BinaryFuseRetrieval retrieval = BinaryFuseRetrieval.build(arena, keys, values)) {
+            for (int i = 0; i < keys.length; i++) {
+                assertEquals(values[i], retrieval.get(keys[i]));
+            }
+        }
+    }
+
+    @Test
+    public void testManyRepeatedKeys() throws Throwable {
+        // 1% of the keys repeated, every copy with the same value
+        SplittableRandom random = new SplittableRandom(4);
+        int distinct = 200_000;
+        long[] keys = new long[distinct + distinct / 100];
+        int[] values = new int[keys.length];
+        for (int i = 0; i < distinct; i++) {
+            keys[i] = random.nextLong();
+            values[i] = random.nextInt(1 << 10);
+        }
+        for (int i = distinct; i < keys.length; i++) {
+            int copy = random.nextInt(distinct);
+            keys[i] = keys[copy];
+            values[i] = values[copy];
+        }
+        try (Arena arena = Arena.ofConfined()) {
+            MemorySegment keysSegment = arena.allocateFrom(ValueLayout.JAVA_LONG, keys);
+            MemorySegment valuesSegment = arena.allocateFrom(ValueLayout.JAVA_INT, values);
+            try (BinaryFuseRetrieval retrieval = BinaryFuseRetrieval.build(arena, keysSegment, valuesSegment,
+                    keys.length, 10)) {
+                for (int i = 0; i < keys.length; i++) {
+                    assertEquals(values[i], retrieval.get(keys[i]));
+                }
+            }
+            assertArrayEquals(keys, keysSegment.toArray(ValueLayout.JAVA_LONG));
+            assertArrayEquals(values, valuesSegment.toArray(ValueLayout.JAVA_INT));
+
+            values[keys.length - 1] ^= 1;
+            assertThrows(IllegalArgumentException.class, () -> BinaryFuseRetrieval.build(arena, keys, values, 10));
+            assertThrows(IllegalArgumentException.class,
+                () -> BinaryFuseRetrieval.build(arena, new long[] {5, 6, 5}, new byte[] {1, 2, 3}));
+        }
+    }
+
+    @Test
+    public void testInvalidArguments() throws Throwable {
+        try (Arena arena = Arena.ofConfined()) {
+            assertThrows(IllegalArgumentException.class,
+                () -> BinaryFuseRetrieval.build(arena, new long[] {1, 2}, new byte[] {1}));
+            assertThrows(IllegalArgumentException.class,
+                () -> BinaryFuseRetrieval.build(arena, new long[] {1, 2}, new int[] {1, 8}, 3));
+            assertThrows(IllegalArgumentException.class,
+                () -> BinaryFuseRetrieval.build(arena, new long[] {1}, new int[] {1}, 0));
+            assertThrows(IllegalArgumentException.class,
+                () -> BinaryFuseRetrieval.build(arena, new long[] {1}, new int[] {1}, 33));
+        }
+    }
+}
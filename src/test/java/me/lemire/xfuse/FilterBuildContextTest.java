@@ -0,0 +1,56 @@
+package me.lemire.xfuse;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.util.SplittableRandom;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+public class FilterBuildContextTest {
+
+    @Test
+    public void testRepeatedBuilds() throws Throwable {
+        SplittableRandom random = new SplittableRandom(1);
+        try (Arena arena = Arena.ofConfined(); FilterBuildContext context = new FilterBuildContext()) {
+            for (int round = 0; round < 20; round++) {
+                int size = 1 + random.nextInt(100_000);
+                long[] keys = random.longs(size).toArray();
+                keys[0] = keys[size - 1]; // a duplicate
+                MemorySegment keySegment = arena.allocate(ValueLayout.JAVA_LONG, size);
+                for (XorFilter.FilterType type : XorFilter.FilterType.values()) {
+                    MemorySegment.copy(keys, 0, keySegment, ValueLayout.JAVA_LONG, 0, size);
+                    try (XorFilter.XorFilterInterface filter = type.newFilter(arena)) {
+                        assertTrue(filter.allocate(size));
+                        assertTrue(filter.populate(keySegment, size, context));
+                        assertTrue(context.lastAttempts() >= 1);
+                        for (long key : keys) {
+                            assertTrue(filter.contains(key), type + " " + size);
+                        }
+                    }
+                }
+            }
+            assertTrue(context.sizeInBytes() > 0);
+            context.trim();
+            assertEquals(0, context.sizeInBytes());
+        }
+    }
+
+    @Test
+    public void testOwnerThread() throws Throwable {
+        try (FilterBuildContext context = new FilterBuildContext()) {
+            ExecutionException e = assertThrows(ExecutionException.class,
+                () -> CompletableFuture.runAsync(() -> {
+                    try {
+                        context.sizeInBytes();
+                    } catch (Throwable t) {
+                        throw new RuntimeException(t);
+                    }
+                }).get());
+            assertInstanceOf(WrongThreadException.class, e.getCause().getCause());
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package me.lemire.xfuse;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class FilterBuildServiceTest {
+
+    @Test
+    public void testBuildFromVirtualThreads() throws Throwable {
+        try (Arena arena = Arena.ofShared();
+             FilterBuildService service = new FilterBuildService(2, 3);
+             ExecutorService callers = Executors.newVirtualThreadPerTaskExecutor()) {
+            List<long[]> keySets = new ArrayList<>();
+            List<Future<CompletableFuture<XorFilter.XorFilterInterface>>> submitted = new ArrayList<>();
+            for (int i = 0; i < 16; i++) {
+                long[] keys = new SplittableRandom(i).longs(50_000).toArray();
+                XorFilter.FilterType type = XorFilter.FilterType.values()[i % XorFilter.FilterType.values().length];
+                keySets.add(keys);
+                submitted.add(callers.submit(() -> service.buildAsync(type, keys, arena)));
+            }
+            for (int i = 0; i < keySets.size(); i++) {
+                try (XorFilter.XorFilterInterface filter = submitted.get(i).get().join()) {
+                    for (long key : keySets.get(i)) {
+                        assertTrue(filter.contains(key));
+                    }
+                }
+            }
+            assertEquals(0, service.pendingBuilds());
+        }
+    }
+
+    @Test
+    public void testCancelQueuedBuild() throws Throwable {
+        try (Arena arena = Arena.ofShared();
+             FilterBuildService service = new FilterBuildService(1, 2)) {
+            long[] keys = new SplittableRandom(1).longs(2_000_000).toArray();
+            CompletableFuture<XorFilter.XorFilterInterface> first =
+                service.buildAsync(XorFilter.FilterType.BINARY_FUSE8, keys, arena);
+            CompletableFuture<XorFilter.XorFilterInterface> second =
+                service.buildAsync(XorFilter.FilterType.BINARY_FUSE16, keys, arena);
+            assertTrue(second.cancel(false));
+            try (XorFilter.XorFilterInterface filter = first.join()) {
+                assertTrue(filter.contains(keys[0]));
+            }
+            assertTrue(second.isCancelled());
+        }
+    }
+
+    @Test
+    public void testFailedAndRejectedBuilds() throws Throwable {
+        try (Arena arena = Arena.ofShared()) {
+            FilterBuildService service = new FilterBuildService(1, 1);
+            MemorySegment keys = arena.allocate(8 * 10);
+            CompletableFuture<XorFilter.XorFilterInterface> failed =
+                service.buildAsync(XorFilter.FilterType.XOR8, keys, 20, arena);
+            CompletionException e = assertThrows(CompletionException.class, failed::join);
+            assertInstanceOf(IndexOutOfBoundsException.class, e.getCause());
+
+            service.close();
+            assertThrows(RejectedExecutionException.class,
+                () -> service.buildAsync(XorFilter.FilterType.XOR8, new long[] {1, 2, 3}, arena));
+            assertEquals(0, service.pendingBuilds());
+        }
+    }
+
+    // A shared arena whose allocations wait until the gate opens
+    private record GatedArena(Arena arena, CountDownLatch gate) implements Arena {
+        @Override
+        public MemorySegment allocate(long byteSize, long byteAlignment) {
+            try {
+                gate.await();
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+            return arena.allocate(byteSize, byteAlignment);
+        }
+
+        @Override
+        public MemorySegment.Scope scope() {
+            return arena.scope();
+        }
+
+        @Override
+        public void close() {
+            arena.close();
+        }
+    }
+
+    @Test
+    public void testBlockedCallerHasNotCopiedItsKeys() throws Throwable {
+        CountDownLatch gate = new CountDownLatch(1);
+        try (Arena arena = Arena.ofShared();
+             FilterBuildService service = new FilterBuildService(1, 1)) {
+            // the only permit is held by a build stuck allocating its filter
+            CompletableFuture<XorFilter.XorFilterInterface> first =
+                service.buildAsync(XorFilter.FilterType.BINARY_FUSE8, new long[] {1, 2, 3}, new GatedArena(arena, gate));
+
+            long[] keys = new long[1000];
+            AtomicReference<CompletableFuture<XorFilter.XorFilterInterface>> second = new AtomicReference<>();
+            Thread caller = Thread.ofVirtual().start(() -> {
+                try {
+                    second.set(service.buildAsync(XorFilter.FilterType.BINARY_FUSE8, keys, arena));
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+            while (caller.getState() != Thread.State.WAITING) {
+                Thread.onSpinWait();
+            }
+            // the copy is taken once the caller gets a permit, so it sees these keys
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = 1_000_000 + i;
+            }
+            gate.countDown();
+            caller.join();
+            first.join().close();
+            try (XorFilter.XorFilterInterface filter = second.get().join()) {
+                for (long key : keys) {
+                    assertTrue(filter.contains(key));
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package me.lemire.xfuse;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.SplittableRandom;
+
+public class FilterBuilderTest {
+
+    @Test
+    public void testBuildWithSpill(@TempDir Path dir) throws Throwable {
+        long[] keys = new SplittableRandom(1).longs(300_000).toArray();
+
+        // A 256 KB threshold forces most of the keys to the spill file
+        try (FilterBuilder builder = new FilterBuilder(1 << 18, dir); Arena arena = Arena.ofConfined()) {
+            for (int i = 0; i < 1000; i++) {
+                builder.add(keys[i]);
+            }
+            builder.addAll(java.util.Arrays.stream(keys, 1000, 100_000));
+            MemorySegment rest = arena.allocate(ValueLayout.JAVA_LONG, keys.length - 100_000);
+            MemorySegment.copy(keys, 100_000, rest, ValueLayout.JAVA_LONG, 0, keys.length - 100_000);
+            builder.addAll(rest);
+            assertEquals(keys.length, builder.count());
+
+            for (XorFilter.FilterType type : XorFilter.FilterType.values()) {
+                try (XorFilter.XorFilterInterface filter = builder.build(arena, type)) {
+                    for (long key : keys) {
+                        assertTrue(filter.contains(key), type.toString());
+                    }
+                }
+            }
+        }
+        assertEquals(0, fileCount(dir));
+    }
+
+    @Test
+    public void testBuildInMemory() throws Throwable {
+        try (FilterBuilder builder = new FilterBuilder();
+             ShardedFilter filter = new ShardedFilter(XorFilter.FilterType.BINARY_FUSE8, 2)) {
+            builder.addAll(java.util.stream.LongStream.range(0, 50_000));
+            assertSame(filter, builder.build(filter));
+            for (long key = 0; key < 50_000; key++) {
+                assertTrue(filter.contains(key));
+            }
+        }
+    }
+
+    private static long fileCount(Path dir) throws IOException {
+        try (var files = Files.list(dir)) {
+            return files.count();
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package me.lemire.xfuse;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+public class FilterCatalogTest {
+
+    // Writes a filter of the keys [first, first + count) and returns its native size
+    private static long write(Path path, long first, int count, boolean packed) throws Throwable {
+        long[] keys = new long[count];
+        for (int i = 0; i < count; i++) {
+            keys[i] = first + i;
+        }
+        try (Arena arena = Arena.ofConfined();
+             XorFilter.BinaryFuse8Filter filter = new XorFilter.BinaryFuse8Filter(arena)) {
+            assertTrue(filter.allocate(count));
+            assertTrue(filter.populate(keys));
+            MemorySegment out = arena.allocate(packed ? filter.packedSize() : filter.serializedSize());
+            long size = packed ? filter.pack(out) : filter.serialize(out);
+            Files.write(path, out.asSlice(0, size).toArray(ValueLayout.JAVA_BYTE));
+            return filter.sizeInBytes();
+        }
+    }
+
+    @Test
+    public void testLoadsLazilyAndEvictsLeastRecentlyUsed(@TempDir Path dir) throws Throwable {
+        long size = 0;
+        for (int s = 0; s < 4; s++) {
+            size = write(dir.resolve(s + ".bin"), s * 10_000L, 10_000, s == 3);
+        }
+        try (FilterCatalog catalog = new FilterCatalog(size * 2 + size / 2)) {
+            for (int s = 0; s < 4; s++) {
+                catalog.register(s, dir.resolve(s + ".bin"));
+            }
+            assertFalse(catalog.isResident(0));
+
+            assertTrue(catalog.contains(0, 5));
+            assertTrue(catalog.contains(1, 10_005));
+            assertTrue(catalog.contains(0, 6));
+            assertEquals(new FilterCatalog.Stats(1, 2, 0, 2 * size, 2), catalog.stats());
+
+            // segment 1 is the least recently used
+            assertTrue(catalog.contains(2, 20_005));
+            assertTrue(catalog.isResident(0));
+            assertFalse(catalog.isResident(1));
+            assertTrue(catalog.isResident(2));
+            assertEquals(1, catalog.stats().evictions());
+
+            // a packed file, loaded again after eviction
+            assertTrue(catalog.contains(3, 30_005));
+            assertTrue(catalog.contains(1, 10_005));
+            FilterCatalog.Stats stats = catalog.stats();
+            assertEquals(5, stats.misses());
+            assertEquals(3, stats.evictions());
+            assertEquals(2, stats.residentFilters());
+            assertTrue(stats.residentBytes() <= catalog.budgetBytes());
+        }
+    }
+
+    @Test
+    public void testEvictionOrder(@TempDir Path dir) throws Throwable {
+        long size = 0;
+        for (int s = 0; s < 5; s++) {
+            size = write(dir.resolve(s + ".bin"), s * 1000L, 1000, false);
+        }
+        try (FilterCatalog catalog = new FilterCatalog(size * 3 + size / 2)) {
+            for (int s = 0; s < 5; s++) {
+                catalog.register(s, dir.resolve(s + ".bin"));
+            }
+            assertTrue(catalog.contains(0, 5));
+            assertTrue(catalog.contains(1, 1005));
+            assertTrue(catalog.contains(2, 2005));
+            assertTrue(catalog.contains(0, 6));
+            assertTrue(catalog.contains(2, 2006));
+
+            // 1 is the only filter not queried since it was loaded
+            assertTrue(catalog.contains(3, 3005));
+            assertResident(catalog, 0, 2, 3);
+            assertTrue(catalog.contains(3, 3006));
+
+            // 2 and 3 were queried since the hand last passed, 0 was not
+            assertTrue(catalog.contains(4, 4005));
+            assertResident(catalog, 2, 3, 4);
+
+            // a filter loaded for a single query goes before those queried again
+            assertTrue(catalog.contains(1, 1005));
+            assertResident(catalog, 1, 2, 3);
+            assertEquals(3, catalog.stats().evictions());
+        }
+    }
+
+    private static void assertResident(FilterCatalog catalog, int... resident) {
+        for (int s = 0; s < 5; s++) {
+            final int segment = s;
+            assertEquals(Arrays.stream(resident).anyMatch(r -> r == segment), catalog.isResident(s),
+                "segment " + s);
+        }
+    }
+
+    @Test
+    public void testLeasedFiltersAreNotEvicted(@TempDir Path dir) throws Throwable {
+        long size = 0;
+        for (int s = 0; s < 3; s++) {
+            size = write(dir.resolve(s + ".bin"), s * 1000L, 1000, false);
+        }
+        try (FilterCatalog catalog = new FilterCatalog(size)) {
+            for (int s = 0; s < 3; s++) {
+                catalog.register(s, dir.resolve(s + ".bin"), FilterCatalog.LoadMode.MAP);
+            }
+            try (FilterHolder.Lease lease = catalog.acquire(0)) {
+                assertTrue(catalog.contains(1, 1005));
+                assertTrue(catalog.contains(2, 2005));
+                assertTrue(catalog.isResident(0));
+                assertTrue(lease.filter().contains(5));
+                assertEquals(0, lease.version());
+            }
+            assertTrue(catalog.contains(1, 1005));
+            assertFalse(catalog.isResident(0));
+            try (FilterHolder.Lease lease = catalog.acquire(0)) {
+                assertEquals(1, lease.version());
+                // an unregistered filter remains valid for its readers
+                assertTrue(catalog.unregister(0));
+                assertFalse(catalog.isResident(0));
+                assertTrue(lease.filter().contains(5));
+            }
+            assertThrows(IllegalArgumentException.class, () -> catalog.contains(0, 5));
+            assertFalse(catalog.unregister(0));
+        }
+    }
+
+    @Test
+    public void testClosedCatalog(@TempDir Path dir) throws Throwable {
+        write(dir.resolve("0.bin"), 0, 100, false);
+        FilterCatalog catalog = new FilterCatalog(1 << 20);
+        catalog.register(0, dir.resolve("0.bin"));
+        assertTrue(catalog.contains(0, 5));
+        catalog.close();
+        assertEquals(0, catalog.stats().residentBytes());
+        assertThrows(IllegalStateException.class, () -> catalog.contains(0, 5));
+    }
+}
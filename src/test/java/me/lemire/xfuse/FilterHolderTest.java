@@ -0,0 +1,98 @@
+package me.lemire.xfuse;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class FilterHolderTest {
+
+    private static XorFilter.XorFilterInterface build(Arena arena, long first, int count) throws Throwable {
+        long[] keys = new long[count];
+        for (int i = 0; i < count; i++) {
+            keys[i] = first + i;
+        }
+        XorFilter.XorFilterInterface filter = new XorFilter.BinaryFuse8Filter(arena);
+        assertTrue(filter.allocate(count));
+        assertTrue(filter.populate(keys));
+        return filter;
+    }
+
+    @Test
+    public void testSwapReclaimsAfterLastReader() throws Throwable {
+        Arena first = Arena.ofShared();
+        try (FilterHolder holder = new FilterHolder(build(first, 0, 1000), first)) {
+            assertTrue(holder.contains(5));
+
+            FilterHolder.Lease lease = holder.acquire();
+            Arena second = Arena.ofShared();
+            assertEquals(1, holder.swap(build(second, 1000, 1000), second));
+
+            // the old filter stays usable until its last lease is closed
+            assertTrue(first.scope().isAlive());
+            assertTrue(lease.filter().contains(5));
+            assertEquals(0, lease.version());
+            lease.close();
+            assertFalse(first.scope().isAlive());
+
+            assertTrue(holder.contains(1500));
+            assertEquals(1, holder.version());
+
+            // without readers, a swap reclaims immediately
+            try (Arena keyArena = Arena.ofConfined()) {
+                MemorySegment keys = keyArena.allocate(ValueLayout.JAVA_LONG, 10);
+                for (int i = 0; i < 10; i++) {
+                    keys.setAtIndex(ValueLayout.JAVA_LONG, i, 5000 + i);
+                }
+                assertEquals(2, holder.swap(XorFilter.FilterType.XOR16, keys, 10));
+            }
+            assertFalse(second.scope().isAlive());
+            assertTrue(holder.contains(5005));
+        }
+    }
+
+    @Test
+    public void testConcurrentReadersAndSwaps() throws Throwable {
+        final int count = 10_000;
+        Arena arena = Arena.ofShared();
+        FilterHolder holder = new FilterHolder(build(arena, 0, count), arena);
+        AtomicBoolean done = new AtomicBoolean();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<Thread> readers = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            Thread reader = new Thread(() -> {
+                try {
+                    // every generation of the filter holds the keys [g, g + count)
+                    long key = count - 1;
+                    while (!done.get()) {
+                        try (FilterHolder.Lease lease = holder.acquire()) {
+                            assertTrue(lease.filter().contains(lease.version() + key));
+                        }
+                        assertTrue(holder.contains(key) || holder.contains(key + count));
+                    }
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+            });
+            readers.add(reader);
+            reader.start();
+        }
+        for (int generation = 1; generation <= 200; generation++) {
+            Arena next = Arena.ofShared();
+            holder.swap(build(next, generation, count), next);
+        }
+        done.set(true);
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        holder.close();
+        assertNull(failure.get());
+        assertThrows(IllegalStateException.class, () -> holder.contains(1));
+    }
+}
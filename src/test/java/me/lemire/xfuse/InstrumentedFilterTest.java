@@ -0,0 +1,93 @@
+package me.lemire.xfuse;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.file.Path;
+import java.util.List;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+public class InstrumentedFilterTest {
+
+    @Test
+    public void testObservedFalsePositiveRate() throws Throwable {
+        int size = 100_000;
+        long[] keys = new long[size];
+        for (int i = 0; i < size; i++) {
+            keys[i] = i * 2L;
+        }
+        try (Arena arena = Arena.ofConfined();
+             InstrumentedFilter filter = new InstrumentedFilter(XorFilter.FilterType.BINARY_FUSE8,
+                 XorFilter.FilterType.BINARY_FUSE8.newFilter(arena))) {
+            assertTrue(filter.allocate(size));
+            assertTrue(filter.populate(keys));
+            // Even keys are members
+            filter.setMembershipCheck(key -> key >= 0 && key < 2L * size && (key & 1) == 0, 1.0);
+
+            int queries = 1_000_000;
+            for (long i = 0; i < queries / 2; i++) {
+                filter.contains(i % size * 2);
+            }
+            MemorySegment absent = arena.allocate(ValueLayout.JAVA_LONG, queries / 2);
+            for (int i = 0; i < queries / 2; i++) {
+                absent.setAtIndex(ValueLayout.JAVA_LONG, i, i * 2L + 1);
+            }
+            filter.containsBatch(absent, queries / 2, arena.allocate(ValueLayout.JAVA_LONG, (queries / 2 + 63) / 64));
+
+            InstrumentedFilter.Metrics m = filter.metrics();
+            assertEquals(queries, m.queries());
+            assertEquals(m.positives(), m.sampledPositives());
+            assertEquals(m.positives() - queries / 2, m.confirmedNegatives());
+            assertEquals(1.0 / 256, m.expectedFalsePositiveRate());
+            assertEquals((double) m.confirmedNegatives() / (queries / 2), m.falsePositiveRate(), 1e-12);
+            assertEquals(m.expectedFalsePositiveRate(), m.falsePositiveRate(), 0.002);
+        }
+    }
+
+    @Test
+    public void testEvents(@TempDir Path dir) throws Throwable {
+        Path file = dir.resolve("filter.jfr");
+        int size = 10_000;
+        try (Recording recording = new Recording()) {
+            recording.enable("me.lemire.xfuse.Populate");
+            recording.enable("me.lemire.xfuse.BatchQuery");
+            recording.start();
+            try (Arena arena = Arena.ofConfined();
+                 FilterBuildContext context = new FilterBuildContext();
+                 InstrumentedFilter filter = new InstrumentedFilter(XorFilter.FilterType.XOR16,
+                     XorFilter.FilterType.XOR16.newFilter(arena))) {
+                MemorySegment keys = arena.allocate(ValueLayout.JAVA_LONG, size);
+                for (int i = 0; i < size; i++) {
+                    keys.setAtIndex(ValueLayout.JAVA_LONG, i, i * 7L);
+                }
+                MemorySegment queries = arena.allocate(ValueLayout.JAVA_LONG, size);
+                MemorySegment.copy(keys, 0, queries, 0, keys.byteSize());
+                assertTrue(filter.allocate(size));
+                assertTrue(filter.populate(keys, size, context));
+                filter.setBatchSampleInterval(1);
+                MemorySegment bitmap = arena.allocate(ValueLayout.JAVA_LONG, (size + 63) / 64);
+                assertEquals(size, filter.containsBatch(queries, size, bitmap));
+            }
+            recording.stop();
+            recording.dump(file);
+        }
+        List<RecordedEvent> events = RecordingFile.readAllEvents(file);
+        RecordedEvent populate = events.stream()
+            .filter(e -> e.getEventType().getName().equals("me.lemire.xfuse.Populate")).findFirst().orElseThrow();
+        assertEquals("XOR16", populate.getString("filterType"));
+        assertEquals(size, populate.getLong("keyCount"));
+        assertTrue(populate.getInt("retries") >= 0);
+        assertTrue(populate.getLong("bytes") > 0);
+        assertTrue(populate.getBoolean("success"));
+        RecordedEvent batch = events.stream()
+            .filter(e -> e.getEventType().getName().equals("me.lemire.xfuse.BatchQuery")).findFirst().orElseThrow();
+        assertEquals(size, batch.getLong("positives"));
+    }
+}
@@ -0,0 +1,122 @@
+package me.lemire.xfuse;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+
+public class KeyHasherTest {
+
+    @Test
+    public void testJavaMatchesNative() throws Throwable {
+        SplittableRandom random = new SplittableRandom(1);
+        byte[][] keys = new byte[200][];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = new byte[i % 40];
+            random.nextBytes(keys[i]);
+        }
+        try (Arena arena = Arena.ofConfined()) {
+            MemorySegment offsets = arena.allocate(ValueLayout.JAVA_LONG, keys.length + 1);
+            long total = 0;
+            for (int i = 0; i < keys.length; i++) {
+                offsets.setAtIndex(ValueLayout.JAVA_LONG, i, total);
+                total += keys[i].length;
+            }
+            offsets.setAtIndex(ValueLayout.JAVA_LONG, keys.length, total);
+            MemorySegment data = arena.allocate(Math.max(total, 1));
+            for (int i = 0; i < keys.length; i++) {
+                long offset = offsets.getAtIndex(ValueLayout.JAVA_LONG, i);
+                MemorySegment.copy(keys[i], 0, data, ValueLayout.JAVA_BYTE, offset, keys[i].length);
+            }
+            MemorySegment out = arena.allocate(ValueLayout.JAVA_LONG, keys.length);
+            KeyHasher.hashAll(data, offsets, keys.length, out);
+
+            for (int i = 0; i < keys.length; i++) {
+                long expected = out.getAtIndex(ValueLayout.JAVA_LONG, i);
+                assertEquals(expected, KeyHasher.hash(keys[i]));
+                assertEquals(expected, KeyHasher.hash(data, offsets.getAtIndex(ValueLayout.JAVA_LONG, i), keys[i].length));
+                assertEquals(expected, KeyHasher.hash(ByteBuffer.wrap(keys[i])));
+            }
+            assertNotEquals(KeyHasher.hash(new byte[0]), KeyHasher.hash(new byte[1]));
+
+            try (FilterBuilder builder = new FilterBuilder();
+                 XorFilter.XorFilterInterface filter = builder.addAll(data, offsets, keys.length)
+                     .build(arena, XorFilter.FilterType.BINARY_FUSE16)) {
+                for (byte[] key : keys) {
+                    assertTrue(filter.contains(key, 0, key.length));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testCharSequenceMatchesUtf8() {
+        String[] keys = {"", "a", "https://example.com/path?q=1", "café naïve", "€中文 text",
+            "emoji 😀 and more 🎉", "unpaired \ud800 high", "unpaired \udc00 low", "end \ud83d"};
+        for (String key : keys) {
+            assertEquals(KeyHasher.hash(key.getBytes(StandardCharsets.UTF_8)), KeyHasher.hash(key), key);
+            assertEquals(KeyHasher.hash(key), KeyHasher.hash(new StringBuilder(key)), key);
+        }
+    }
+
+    @Test
+    public void testStringKeys() throws Throwable {
+        List<String> urls = new ArrayList<>();
+        for (int i = 0; i < 50_000; i++) {
+            urls.add("https://example.com/item/" + i);
+        }
+        try (Arena arena = Arena.ofConfined();
+             FilterBuilder builder = new FilterBuilder()) {
+            XorFilter.BinaryFuse8Filter filter = new XorFilter.BinaryFuse8Filter(arena);
+            assertTrue(filter.allocate(urls.size()));
+            assertTrue(filter.populate(urls));
+            for (String url : urls) {
+                assertTrue(filter.contains(url));
+                byte[] bytes = url.getBytes(StandardCharsets.UTF_8);
+                assertTrue(filter.contains(bytes, 0, bytes.length));
+            }
+            filter.close();
+
+            urls.forEach(builder::add);
+            try (XorFilter.XorFilterInterface built = builder.build(arena, XorFilter.FilterType.XOR16)) {
+                for (String url : urls) {
+                    assertTrue(built.contains(url));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testHashAllSpanningChunks() throws Throwable {
+        SplittableRandom random = new SplittableRandom(2);
+        int count = 2 * 4096 + 100;
+        long[] offsets = new long[count + 1];
+        for (int i = 0; i < count; i++) {
+            offsets[i + 1] = offsets[i] + random.nextInt(20);
+        }
+        byte[] data = new byte[(int) offsets[count]];
+        random.nextBytes(data);
+
+        try (Arena arena = Arena.ofConfined()) {
+            MemorySegment out = arena.allocate(ValueLayout.JAVA_LONG, count);
+            KeyHasher.hashAll(arena.allocateFrom(ValueLayout.JAVA_BYTE, data), arena.allocateFrom(ValueLayout.JAVA_LONG, offsets),
+                count, out);
+            long[] expected = new long[count];
+            for (int i = 0; i < count; i++) {
+                expected[i] = KeyHasher.hash(data, (int) offsets[i], (int) (offsets[i + 1] - offsets[i]));
+            }
+            assertArrayEquals(expected, out.toArray(ValueLayout.JAVA_LONG));
+
+            long[] heapOut = new long[count];
+            KeyHasher.hashAll(MemorySegment.ofArray(data), MemorySegment.ofArray(offsets), count, MemorySegment.ofArray(heapOut));
+            assertArrayEquals(expected, heapOut);
+        }
+    }
+}
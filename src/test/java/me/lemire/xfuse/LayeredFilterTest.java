@@ -0,0 +1,157 @@
+package me.lemire.xfuse;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class LayeredFilterTest {
+
+    @Test
+    public void testAddsAreMergedIntoTheBase() throws Throwable {
+        try (Arena arena = Arena.ofConfined();
+             FilterBuildService service = new FilterBuildService(1, 2)) {
+            MemorySegment initial = arena.allocate(ValueLayout.JAVA_LONG, 10_000);
+            for (int i = 0; i < 10_000; i++) {
+                initial.setAtIndex(ValueLayout.JAVA_LONG, i, 100_000 + i);
+            }
+            try (LayeredFilter filter = new LayeredFilter(XorFilter.FilterType.BINARY_FUSE16, initial, 10_000, 1000, service)) {
+                assertEquals(0, filter.version());
+                assertTrue(filter.contains(100_005));
+                filter.add(1);
+                filter.add(1);
+                assertEquals(1, filter.deltaSize());
+
+                // key 0 is kept apart from the empty slots of the delta
+                for (long key = 0; key < 5000; key++) {
+                    filter.add(key);
+                    assertTrue(filter.contains(key));
+                }
+                filter.add("layered");
+
+                long version = filter.rebuild();
+                assertTrue(version >= 1, "version " + version);
+                assertEquals(version, filter.version());
+                assertEquals(0, filter.deltaSize());
+                assertEquals(version, filter.rebuild());
+                for (long key = 0; key < 5000; key++) {
+                    assertTrue(filter.contains(key));
+                }
+                assertTrue(filter.contains(100_005));
+                assertTrue(filter.contains("layered"));
+
+                // keys found in the base or in the delta
+                filter.add(7_000_000);
+                MemorySegment queries = arena.allocate(ValueLayout.JAVA_LONG, 128);
+                MemorySegment bitmap = arena.allocate(ValueLayout.JAVA_LONG, 2);
+                for (int i = 0; i < 128; i++) {
+                    queries.setAtIndex(ValueLayout.JAVA_LONG, i, i < 64 ? 100_000 + i : 7_000_000);
+                }
+                assertEquals(128, filter.containsBatch(queries, 128, bitmap));
+                assertEquals(-1L, bitmap.getAtIndex(ValueLayout.JAVA_LONG, 0));
+                assertEquals(-1L, bitmap.getAtIndex(ValueLayout.JAVA_LONG, 1));
+            }
+        }
+    }
+
+    @Test
+    public void testQueriesDuringRebuilds() throws Throwable {
+        try (FilterBuildService service = new FilterBuildService(1, 1);
+             LayeredFilter filter = new LayeredFilter(XorFilter.FilterType.BINARY_FUSE8, 500, service)) {
+            AtomicLong added = new AtomicLong();
+            AtomicBoolean done = new AtomicBoolean();
+            AtomicReference<Throwable> error = new AtomicReference<>();
+            List<Thread> readers = new ArrayList<>();
+            for (int r = 0; r < 3; r++) {
+                int seed = r;
+                readers.add(Thread.ofPlatform().start(() -> {
+                    SplittableRandom random = new SplittableRandom(seed);
+                    try {
+                        while (!done.get()) {
+                            long n = added.get();
+                            if (n > 0) {
+                                long key = 1 + random.nextLong(n);
+                                if (!filter.contains(key)) {
+                                    throw new AssertionError("missing key " + key + " of " + n);
+                                }
+                            }
+                        }
+                    } catch (Throwable e) {
+                        error.compareAndSet(null, e);
+                    }
+                }));
+            }
+            for (long key = 1; key <= 50_000; key++) {
+                filter.add(key);
+                added.set(key);
+            }
+            done.set(true);
+            for (Thread reader : readers) {
+                reader.join();
+            }
+            assertNull(error.get());
+            assertTrue(filter.version() >= 10, "version " + filter.version());
+        }
+    }
+
+    @Test
+    public void testRepeatedKeysAreNotLogged() throws Throwable {
+        try (Arena arena = Arena.ofConfined();
+             FilterBuildService service = new FilterBuildService(1, 1)) {
+            MemorySegment initial = arena.allocate(ValueLayout.JAVA_LONG, 2000);
+            for (int i = 0; i < 2000; i++) {
+                initial.setAtIndex(ValueLayout.JAVA_LONG, i, i % 1000);
+            }
+            try (LayeredFilter filter = new LayeredFilter(XorFilter.FilterType.BINARY_FUSE8, initial, 2000, 100, service)) {
+                assertEquals(1000, filter.keyCount());
+                for (int round = 0; round < 5; round++) {
+                    for (long key = 500; key < 1100; key++) {
+                        filter.add(key);
+                    }
+                    filter.rebuild();
+                    assertEquals(1100, filter.keyCount());
+                }
+                for (long key = 0; key < 1100; key++) {
+                    assertTrue(filter.contains(key));
+                }
+
+                // segments at any alignment
+                filter.add(5000);
+                MemorySegment queries = arena.allocate(8 * 65 + 4).asSlice(4);
+                MemorySegment bitmap = arena.allocate(8 * 2 + 4).asSlice(4);
+                for (int i = 0; i < 65; i++) {
+                    queries.set(ValueLayout.JAVA_LONG_UNALIGNED, i * 8L, i == 64 ? 5000 : i);
+                }
+                assertEquals(65, filter.containsBatch(queries, 65, bitmap));
+                assertEquals(-1L, bitmap.get(ValueLayout.JAVA_LONG_UNALIGNED, 0));
+                assertEquals(1L, bitmap.get(ValueLayout.JAVA_LONG_UNALIGNED, 8));
+            }
+        }
+    }
+
+    @Test
+    public void testClosedFilter() throws Throwable {
+        try (FilterBuildService service = new FilterBuildService(1, 1)) {
+            assertThrows(IllegalArgumentException.class,
+                () -> new LayeredFilter(XorFilter.FilterType.BINARY_FUSE8, 0, service));
+
+            LayeredFilter filter = new LayeredFilter(XorFilter.FilterType.BINARY_FUSE8, 10, service);
+            // closed with a rebuild running, which is then discarded
+            for (long key = 1; key <= 15; key++) {
+                filter.add(key);
+            }
+            filter.close();
+            assertThrows(IllegalStateException.class, () -> filter.contains(1));
+            assertThrows(IllegalStateException.class, () -> filter.add(1));
+            assertThrows(IllegalStateException.class, filter::rebuild);
+        }
+    }
+}
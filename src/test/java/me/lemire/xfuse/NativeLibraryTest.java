@@ -0,0 +1,22 @@
+package me.lemire.xfuse;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.List;
+
+public class NativeLibraryTest {
+
+    @Test
+    public void testLoaded() {
+        assertNull(NativeLibrary.failure);
+        assertTrue(List.of("baseline", "avx2", "avx512").contains(XorFilter.nativeVariant()));
+    }
+
+    @Test
+    public void testPlatform() {
+        String platform = NativeLibrary.platform();
+        assertTrue(platform.matches("[a-z0-9 ]+-[a-z0-9_]+"), platform);
+        assertFalse(platform.endsWith("-amd64"), platform);
+    }
+}
@@ -0,0 +1,117 @@
+package me.lemire.xfuse;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+
+public class ShardedFilterTest {
+
+    @Test
+    public void testShardedFilter() throws Throwable {
+        long[] keys = new SplittableRandom(1).longs(200_000).toArray();
+        long[] queries = new SplittableRandom(2).longs(100_000).toArray();
+
+        for (XorFilter.FilterType type : XorFilter.FilterType.values()) {
+            try (ShardedFilter filter = new ShardedFilter(type, 4)) {
+                assertEquals(16, filter.shardCount());
+                assertTrue(filter.allocate(keys.length));
+                assertTrue(filter.populate(keys));
+
+                for (long key : keys) {
+                    assertTrue(filter.contains(key));
+                }
+                int falsePositives = 0;
+                for (long key : queries) {
+                    if (filter.contains(key)) falsePositives++;
+                }
+                assertTrue(falsePositives < queries.length / 100, type + ": " + falsePositives);
+
+                boolean[] out = new boolean[queries.length];
+                assertEquals(falsePositives, filter.containsBatch(queries, out));
+
+                filter.setQueryEngine(XorFilter.QueryEngine.JAVA);
+                for (int i = 0; i < queries.length; i++) {
+                    assertEquals(out[i], filter.contains(queries[i]));
+                }
+                assertTrue(filter.sizeInBytes() > 0);
+            }
+        }
+    }
+
+    @Test
+    public void testContainsBatchAcrossShards() throws Throwable {
+        long[] keys = new SplittableRandom(4).longs(50_000).toArray();
+        SplittableRandom random = new SplittableRandom(5);
+        // more shards than keys per run, and a final partial word
+        try (Arena arena = Arena.ofConfined();
+             ShardedFilter filter = new ShardedFilter(XorFilter.FilterType.XOR8, 13)) {
+            assertTrue(filter.allocate(keys.length));
+            assertTrue(filter.populate(keys));
+            int count = 3 * 8192 + 37;
+            MemorySegment queries = arena.allocate(ValueLayout.JAVA_LONG, count);
+            for (int i = 0; i < count; i++) {
+                queries.setAtIndex(ValueLayout.JAVA_LONG, i, i % 3 == 0 ? random.nextLong() : keys[i]);
+            }
+            MemorySegment bitmap = arena.allocate(ValueLayout.JAVA_LONG, (count + 63) / 64);
+            long matches = filter.containsBatch(queries, count, bitmap);
+            long expected = 0;
+            for (int i = 0; i < count; i++) {
+                boolean found = filter.contains(queries.getAtIndex(ValueLayout.JAVA_LONG, i));
+                assertEquals(found, (bitmap.getAtIndex(ValueLayout.JAVA_LONG, i >>> 6) >>> i & 1) != 0, "query " + i);
+                expected += found ? 1 : 0;
+            }
+            assertEquals(expected, matches);
+            assertEquals(0, bitmap.getAtIndex(ValueLayout.JAVA_LONG, count >>> 6) >>> (count & 63));
+        }
+    }
+
+    @Test
+    public void testParallelPartition() throws Throwable {
+        long[] keys = new SplittableRandom(3).longs(500_000).toArray();
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try (Arena arena = Arena.ofConfined();
+             ShardedFilter filter = new ShardedFilter(XorFilter.FilterType.BINARY_FUSE8, 6, pool)) {
+            // split across the pool, then on the calling thread for a confined segment
+            assertTrue(filter.allocate(keys.length));
+            assertTrue(filter.populate(keys));
+            for (long key : keys) {
+                assertTrue(filter.contains(key));
+            }
+            MemorySegment confined = arena.allocate(ValueLayout.JAVA_LONG, keys.length);
+            MemorySegment.copy(keys, 0, confined, ValueLayout.JAVA_LONG, 0, keys.length);
+            assertTrue(filter.populate(confined, keys.length));
+            for (long key : keys) {
+                assertTrue(filter.contains(key));
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testRepopulate() throws Throwable {
+        try (ShardedFilter filter = new ShardedFilter(XorFilter.FilterType.XOR8, 3)) {
+            for (int round = 0; round < 5; round++) {
+                long[] keys = new SplittableRandom(round).longs(10_000).toArray();
+                assertTrue(filter.allocate(keys.length));
+                assertTrue(filter.populate(keys));
+                for (long key : keys) {
+                    assertTrue(filter.contains(key));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testPopulateRequiresAllocatedSize() throws Throwable {
+        try (ShardedFilter filter = new ShardedFilter(XorFilter.FilterType.BINARY_FUSE8, 2)) {
+            assertTrue(filter.allocate(10));
+            assertFalse(filter.populate(new long[] {1, 2, 3}));
+        }
+    }
+}
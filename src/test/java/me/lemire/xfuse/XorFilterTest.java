@@ -1,9 +1,22 @@
 package me.lemire.xfuse;
 
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 import static org.junit.jupiter.api.Assertions.*;
 
 import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.function.Function;
 
 public class XorFilterTest {
 
@@ -90,4 +103,625 @@ public class XorFilterTest {
             assertTrue(filter.sizeInBytes() > 0);
         }
     }
+
+    @Test
+    public void testFourWiseBinaryFuseFilters() throws Throwable {
+        long[] keys = new SplittableRandom(14).longs(1_000_000).toArray();
+        long[] queries = new SplittableRandom(15).longs(1_000_000).toArray();
+        XorFilter.FilterType[][] pairs = {
+            {XorFilter.FilterType.BINARY_FUSE8, XorFilter.FilterType.BINARY_FUSE8_4WISE},
+            {XorFilter.FilterType.BINARY_FUSE16, XorFilter.FilterType.BINARY_FUSE16_4WISE},
+        };
+
+        for (XorFilter.FilterType[] pair : pairs) {
+            try (Arena arena = Arena.ofConfined();
+                 XorFilter.XorFilterInterface threeWise = pair[0].newFilter(arena);
+                 XorFilter.XorFilterInterface fourWise = pair[1].newFilter(arena)) {
+                assertTrue(threeWise.allocate(keys.length));
+                assertTrue(threeWise.populate(keys));
+                assertTrue(fourWise.allocate(keys.length));
+                assertTrue(fourWise.populate(keys));
+                for (long key : keys) {
+                    assertTrue(fourWise.contains(key));
+                }
+
+                // About 1.075 instead of 1.125 slots per key
+                double slots = fourWise.sizeInBytes() / (double) (keys.length * pair[1].fingerprintBytes());
+                assertTrue(slots < 1.08, pair[1] + ": " + slots);
+                assertTrue(fourWise.sizeInBytes() < 0.96 * threeWise.sizeInBytes());
+
+                long falsePositives = 0;
+                for (long query : queries) {
+                    falsePositives += fourWise.contains(query) ? 1 : 0;
+                }
+                double expected = pair[1].falsePositiveRate() * queries.length;
+                assertTrue(falsePositives < 1.2 * expected + 10, pair[1] + ": " + falsePositives);
+            }
+        }
+    }
+
+    @Test
+    public void testBinaryFuse32Filter() throws Throwable {
+        long[] keys = new SplittableRandom(16).longs(1_000_000).toArray();
+        try (Arena arena = Arena.ofConfined();
+             XorFilter.BinaryFuse32Filter filter = new XorFilter.BinaryFuse32Filter(arena)) {
+            assertTrue(filter.allocate(keys.length));
+            assertTrue(filter.populate(keys));
+            for (long key : keys) {
+                assertTrue(filter.contains(key));
+            }
+            double bitsPerKey = filter.sizeInBytes() * 8.0 / keys.length;
+            assertTrue(bitsPerKey < 37, "bits per key: " + bitsPerKey);
+
+            // 2^-32: not a single false positive is expected among a few million queries
+            SplittableRandom random = new SplittableRandom(17);
+            long falsePositives = 0;
+            for (int i = 0; i < 4_000_000; i++) {
+                falsePositives += filter.contains(random.nextLong()) ? 1 : 0;
+            }
+            assertTrue(falsePositives <= 1, "false positives: " + falsePositives);
+
+            MemorySegment out = arena.allocate(filter.serializedSize(), 8);
+            filter.serialize(out);
+            try (XorFilter.XorFilterInterface copy = XorFilter.deserialize(arena, out)) {
+                assertTrue(copy instanceof XorFilter.BinaryFuse32Filter);
+                for (int i = 0; i < 1000; i++) {
+                    assertTrue(copy.contains(keys[i]));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testBinaryFuseFilterWidths() throws Throwable {
+        long[] keys = new SplittableRandom(18).longs(1_000_000).toArray();
+        long[] queries = new SplittableRandom(19).longs(1_000_000).toArray();
+
+        for (int bits : new int[] {4, 7, 12, 13, 20, 24}) {
+            try (Arena arena = Arena.ofConfined();
+                 XorFilter.BinaryFuseFilter filter = XorFilter.BinaryFuseFilter.builder().fingerprintBits(bits).build(arena)) {
+                assertEquals(bits, filter.fingerprintBits());
+                assertTrue(filter.allocate(keys.length));
+                assertTrue(filter.populate(keys));
+                for (long key : keys) {
+                    assertTrue(filter.contains(key));
+                }
+                // About 1.125 slots per key, bit-packed
+                double bitsPerKey = filter.sizeInBytes() * 8.0 / keys.length;
+                assertTrue(bitsPerKey < 1.14 * bits, bits + " bits: " + bitsPerKey);
+
+                long falsePositives = 0;
+                for (long query : queries) {
+                    falsePositives += filter.contains(query) ? 1 : 0;
+                }
+                double expected = filter.falsePositiveRate() * queries.length;
+                assertTrue(falsePositives < 1.2 * expected + 10, bits + " bits: " + falsePositives);
+
+                MemorySegment querySegment = arena.allocate(ValueLayout.JAVA_LONG, queries.length);
+                MemorySegment.copy(queries, 0, querySegment, ValueLayout.JAVA_LONG, 0, queries.length);
+                MemorySegment nativeBitmap = arena.allocate(ValueLayout.JAVA_LONG, (queries.length + 63) / 64);
+                MemorySegment javaBitmap = arena.allocate(ValueLayout.JAVA_LONG, (queries.length + 63) / 64);
+                assertEquals(falsePositives, filter.containsBatch(querySegment, queries.length, nativeBitmap));
+                filter.setQueryEngine(XorFilter.QueryEngine.JAVA);
+                assertEquals(falsePositives, filter.containsBatch(querySegment, queries.length, javaBitmap));
+                assertEquals(-1, nativeBitmap.mismatch(javaBitmap));
+
+                MemorySegment out = arena.allocate(filter.serializedSize(), 8);
+                filter.serialize(out);
+                try (XorFilter.XorFilterInterface copy = XorFilter.view(arena, out)) {
+                    assertEquals(bits, ((XorFilter.BinaryFuseFilter) copy).fingerprintBits());
+                    for (int i = 0; i < 1000; i++) {
+                        assertTrue(copy.contains(keys[i]));
+                    }
+                }
+            }
+        }
+
+        assertThrows(IllegalArgumentException.class, () -> XorFilter.BinaryFuseFilter.builder().fingerprintBits(3));
+        assertThrows(IllegalArgumentException.class, () -> XorFilter.BinaryFuseFilter.builder().fingerprintBits(33));
+    }
+
+    private static final List<Function<Arena, XorFilter.XorFilterInterface>> FACTORIES = List.of(
+        XorFilter.Xor8Filter::new,
+        XorFilter.Xor16Filter::new,
+        XorFilter.BinaryFuse8Filter::new,
+        XorFilter.BinaryFuse16Filter::new,
+        XorFilter.BinaryFuse8FourWiseFilter::new,
+        XorFilter.BinaryFuse16FourWiseFilter::new,
+        XorFilter.BinaryFuse32Filter::new,
+        XorFilter.BinaryFuseFilter::new
+    );
+
+    @Test
+    public void testContainsBatch() throws Throwable {
+        long[] keys = new long[10_000];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = i * 3L;
+        }
+        long[] queries = new long[1_000];
+        for (int i = 0; i < queries.length; i++) {
+            queries[i] = i;
+        }
+
+        for (Function<Arena, XorFilter.XorFilterInterface> factory : FACTORIES) {
+            try (Arena arena = Arena.ofConfined();
+                 XorFilter.XorFilterInterface filter = factory.apply(arena)) {
+
+                assertTrue(filter.allocate(keys.length));
+                assertTrue(filter.populate(keys.clone()));
+
+                boolean[] out = new boolean[queries.length];
+                long matches = filter.containsBatch(queries, out);
+                long expected = 0;
+                for (int i = 0; i < queries.length; i++) {
+                    assertEquals(filter.contains(queries[i]), out[i]);
+                    if (out[i]) expected++;
+                }
+                assertEquals(expected, matches);
+
+                // Off-heap keys and bitmap
+                MemorySegment keySegment = arena.allocateFrom(ValueLayout.JAVA_LONG, queries);
+                MemorySegment bitmap = arena.allocate(ValueLayout.JAVA_LONG, (queries.length + 63) / 64);
+                assertEquals(expected, filter.containsBatch(keySegment, queries.length, bitmap));
+                for (int i = 0; i < queries.length; i++) {
+                    boolean bit = (bitmap.getAtIndex(ValueLayout.JAVA_LONG, i >>> 6) & (1L << i)) != 0;
+                    assertEquals(out[i], bit);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testJavaQueryEngineMatchesNative() throws Throwable {
+        SplittableRandom random = new SplittableRandom(42);
+        long[] keys = random.longs(50_000).toArray();
+        long[] queries = random.longs(100_000).toArray();
+        System.arraycopy(keys, 0, queries, 0, 10_000);
+
+        for (Function<Arena, XorFilter.XorFilterInterface> factory : FACTORIES) {
+            try (Arena arena = Arena.ofConfined();
+                 XorFilter.XorFilterInterface filter = factory.apply(arena)) {
+
+                assertTrue(filter.allocate(keys.length));
+                assertTrue(filter.populate(keys.clone()));
+
+                boolean[] expected = new boolean[queries.length];
+                for (int i = 0; i < queries.length; i++) {
+                    expected[i] = filter.contains(queries[i]);
+                }
+                filter.setQueryEngine(XorFilter.QueryEngine.JAVA);
+                for (int i = 0; i < queries.length; i++) {
+                    assertEquals(expected[i], filter.contains(queries[i]), "key " + queries[i]);
+                }
+                boolean[] batch = new boolean[queries.length];
+                filter.containsBatch(queries, batch);
+                assertArrayEquals(expected, batch);
+            }
+        }
+    }
+
+    @Test
+    public void testBatchesSpanningChunks() throws Throwable {
+        long[] keys = new SplittableRandom(8).longs(20_000).toArray();
+        // several chunks of heap keys, the last one partial
+        long[] queries = new long[3 * 4096 + 37];
+        for (int i = 0; i < queries.length; i++) {
+            queries[i] = i % 2 == 0 ? keys[i % keys.length] : i;
+        }
+
+        for (Function<Arena, XorFilter.XorFilterInterface> factory : FACTORIES) {
+            try (Arena arena = Arena.ofConfined();
+                 XorFilter.XorFilterInterface filter = factory.apply(arena)) {
+                assertTrue(filter.allocate(keys.length));
+                assertTrue(filter.populate(keys.clone()));
+                long[] expected = new long[(queries.length + 63) / 64];
+                long expectedCount = 0;
+                for (int i = 0; i < queries.length; i++) {
+                    if (filter.contains(queries[i])) {
+                        expected[i >>> 6] |= 1L << i;
+                        expectedCount++;
+                    }
+                }
+
+                MemorySegment querySegment = arena.allocateFrom(ValueLayout.JAVA_LONG, queries);
+                MemorySegment bitmapSegment = arena.allocate(ValueLayout.JAVA_LONG, expected.length);
+                assertEquals(expectedCount, filter.containsBatch(querySegment, queries.length, bitmapSegment));
+                assertArrayEquals(expected, bitmapSegment.toArray(ValueLayout.JAVA_LONG));
+
+                long[] bitmap = new long[expected.length];
+                assertEquals(expectedCount, filter.containsBatch(queries, bitmap));
+                assertArrayEquals(expected, bitmap);
+
+                int[] selection = new int[queries.length];
+                assertEquals(expectedCount, filter.filterSelect(queries, selection));
+                for (int i = 0, s = 0; i < queries.length; i++) {
+                    if ((expected[i >>> 6] & (1L << i)) != 0) {
+                        assertEquals(i, selection[s++]);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testFilterSelect() throws Throwable {
+        SplittableRandom random = new SplittableRandom(7);
+        long[] keys = random.longs(20_000).toArray();
+        long[] other = random.longs(20_000).toArray();
+        long[] column = random.longs(50_000).toArray();
+        for (int i = 0; i < column.length; i += 3) {
+            column[i] = keys[i % keys.length];
+        }
+        for (int i = 0; i < column.length; i += 5) {
+            column[i] = other[i % other.length];
+        }
+
+        for (Function<Arena, XorFilter.XorFilterInterface> factory : FACTORIES) {
+            try (Arena arena = Arena.ofConfined();
+                 XorFilter.XorFilterInterface filter = factory.apply(arena);
+                 XorFilter.XorFilterInterface second = new XorFilter.BinaryFuse8Filter(arena)) {
+                assertTrue(filter.allocate(keys.length));
+                assertTrue(filter.populate(keys.clone()));
+                long[] both = new long[keys.length + other.length];
+                System.arraycopy(keys, 0, both, 0, keys.length);
+                System.arraycopy(other, 0, both, keys.length, other.length);
+                assertTrue(second.allocate(both.length));
+                assertTrue(second.populate(both));
+
+                int[] expected = new int[column.length];
+                int expectedCount = 0;
+                int chainedCount = 0;
+                for (int row = 0; row < column.length; row++) {
+                    if (filter.contains(column[row])) {
+                        expected[expectedCount++] = row;
+                        if (second.contains(column[row])) {
+                            chainedCount++;
+                        }
+                    }
+                }
+
+                MemorySegment columnSegment = arena.allocateFrom(ValueLayout.JAVA_LONG, column);
+                MemorySegment selection = arena.allocate(ValueLayout.JAVA_INT, column.length);
+                int count = filter.filterSelect(columnSegment, column.length, selection);
+                assertEquals(expectedCount, count);
+                for (int i = 0; i < count; i++) {
+                    assertEquals(expected[i], selection.getAtIndex(ValueLayout.JAVA_INT, i));
+                }
+
+                // chained in place
+                int chained = second.filterSelect(columnSegment, column.length, selection, count, selection);
+                assertEquals(chainedCount, chained);
+                for (int i = 0; i < chained; i++) {
+                    int row = selection.getAtIndex(ValueLayout.JAVA_INT, i);
+                    assertTrue(filter.contains(column[row]) && second.contains(column[row]));
+                }
+
+                MemorySegment compacted = arena.allocate(ValueLayout.JAVA_LONG, column.length);
+                assertEquals(expectedCount, filter.filterKeys(columnSegment, column.length, compacted));
+                for (int i = 0; i < expectedCount; i++) {
+                    assertEquals(column[expected[i]], compacted.getAtIndex(ValueLayout.JAVA_LONG, i));
+                }
+
+                selection.setAtIndex(ValueLayout.JAVA_INT, 3, column.length);
+                assertThrows(IndexOutOfBoundsException.class,
+                    () -> filter.filterSelect(columnSegment, column.length, selection, 10, selection));
+
+                filter.setQueryEngine(XorFilter.QueryEngine.JAVA);
+                int[] javaSelection = new int[column.length];
+                assertEquals(expectedCount, filter.filterSelect(column, javaSelection));
+                assertArrayEquals(Arrays.copyOf(expected, expectedCount), Arrays.copyOf(javaSelection, expectedCount));
+                long[] javaKeys = column.clone();
+                assertEquals(expectedCount, filter.filterKeys(javaKeys));
+                for (int i = 0; i < expectedCount; i++) {
+                    assertEquals(column[expected[i]], javaKeys[i]);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testVectorQueryEngineMatchesNative() throws Throwable {
+        SplittableRandom random = new SplittableRandom(43);
+        long[] keys = random.longs(50_000).toArray();
+        long[] queries = random.longs(100_003).toArray();
+        System.arraycopy(keys, 0, queries, 0, 10_000);
+
+        for (XorFilter.FilterType type : XorFilter.FilterType.values()) {
+            try (Arena arena = Arena.ofConfined();
+                 XorFilter.XorFilterInterface filter = type.newFilter(arena)) {
+
+                assertTrue(filter.allocate(keys.length));
+                assertTrue(filter.populate(keys.clone()));
+                if (type != XorFilter.FilterType.BINARY_FUSE8 && type != XorFilter.FilterType.BINARY_FUSE16
+                    && type != XorFilter.FilterType.BINARY_FUSE32) {
+                    assertThrows(UnsupportedOperationException.class,
+                        () -> filter.setQueryEngine(XorFilter.QueryEngine.VECTOR));
+                    continue;
+                }
+
+                boolean[] expected = new boolean[queries.length];
+                for (int i = 0; i < queries.length; i++) {
+                    expected[i] = filter.contains(queries[i]);
+                }
+                filter.setQueryEngine(XorFilter.QueryEngine.VECTOR);
+                MemorySegment keySegment = arena.allocate(ValueLayout.JAVA_LONG, queries.length);
+                MemorySegment.copy(queries, 0, keySegment, ValueLayout.JAVA_LONG, 0, queries.length);
+                MemorySegment bitmap = arena.allocate(ValueLayout.JAVA_LONG, (queries.length + 63) / 64);
+                long matches = filter.containsBatch(keySegment, queries.length, bitmap);
+                long expectedMatches = 0;
+                for (int i = 0; i < queries.length; i++) {
+                    boolean bit = (bitmap.getAtIndex(ValueLayout.JAVA_LONG, i >>> 6) & (1L << i)) != 0;
+                    assertEquals(expected[i], bit, type + " key " + queries[i]);
+                    expectedMatches += expected[i] ? 1 : 0;
+                }
+                assertEquals(expectedMatches, matches);
+
+                boolean[] batch = new boolean[queries.length];
+                filter.containsBatch(queries, batch);
+                assertArrayEquals(expected, batch, type.toString());
+            }
+        }
+    }
+
+    @Test
+    public void testSerializationRoundTrip() throws Throwable {
+        long[] keys = new SplittableRandom(7).longs(20_000).toArray();
+        long[] queries = new SplittableRandom(8).longs(20_000).toArray();
+
+        for (XorFilter.FilterType type : XorFilter.FilterType.values()) {
+            try (Arena arena = Arena.ofConfined();
+                 XorFilter.XorFilterInterface filter = type.newFilter(arena)) {
+
+                assertTrue(filter.allocate(keys.length));
+                assertTrue(filter.populate(keys.clone()));
+
+                MemorySegment plain = arena.allocate(filter.serializedSize());
+                long written = filter.serialize(plain);
+                assertEquals(plain.byteSize(), written);
+                assertEquals(type, XorFilter.serializedType(plain));
+
+                MemorySegment packed = arena.allocate(filter.packedSize());
+                long packedWritten = filter.pack(packed);
+
+                ByteBuffer heap = ByteBuffer.allocate((int) written);
+                filter.serialize(heap);
+                assertEquals(written, heap.position());
+                heap.flip();
+
+                try (XorFilter.XorFilterInterface copy = XorFilter.deserialize(arena, plain);
+                     XorFilter.XorFilterInterface unpacked = XorFilter.deserialize(arena, packed.asSlice(0, packedWritten));
+                     XorFilter.XorFilterInterface fromHeap = XorFilter.deserialize(arena, heap)) {
+                    assertEquals(filter.sizeInBytes(), copy.sizeInBytes());
+                    for (long key : keys) {
+                        assertTrue(copy.contains(key));
+                        assertTrue(unpacked.contains(key));
+                        assertTrue(fromHeap.contains(key));
+                    }
+                    for (long key : queries) {
+                        boolean expected = filter.contains(key);
+                        assertEquals(expected, copy.contains(key));
+                        assertEquals(expected, unpacked.contains(key));
+                        assertEquals(expected, fromHeap.contains(key));
+                    }
+                }
+
+                assertThrows(IllegalArgumentException.class,
+                    () -> XorFilter.deserialize(arena, plain.asSlice(0, written - 1)));
+            }
+        }
+    }
+
+
+    @Test
+    public void testMappedFilter(@TempDir Path dir) throws Throwable {
+        long[] keys = new SplittableRandom(9).longs(20_000).toArray();
+        long[] queries = new SplittableRandom(10).longs(20_000).toArray();
+
+        for (XorFilter.FilterType type : XorFilter.FilterType.values()) {
+            Path file = dir.resolve(type + ".bin");
+            boolean[] expected = new boolean[queries.length];
+            try (Arena arena = Arena.ofConfined();
+                 XorFilter.XorFilterInterface filter = type.newFilter(arena)) {
+                assertTrue(filter.allocate(keys.length));
+                assertTrue(filter.populate(keys.clone()));
+                for (int i = 0; i < queries.length; i++) {
+                    expected[i] = filter.contains(queries[i]);
+                }
+                try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                        StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                    MemorySegment out = channel.map(FileChannel.MapMode.READ_WRITE, 0, filter.serializedSize(), arena);
+                    filter.serialize(out);
+                }
+            }
+
+            try (Arena arena = Arena.ofConfined();
+                 XorFilter.XorFilterInterface mapped = XorFilter.map(arena, file)) {
+                for (long key : keys) {
+                    assertTrue(mapped.contains(key));
+                }
+                for (int i = 0; i < queries.length; i++) {
+                    assertEquals(expected[i], mapped.contains(queries[i]));
+                }
+                mapped.setQueryEngine(XorFilter.QueryEngine.JAVA);
+                for (int i = 0; i < queries.length; i++) {
+                    assertEquals(expected[i], mapped.contains(queries[i]));
+                }
+                assertThrows(IllegalStateException.class, () -> mapped.populate(keys));
+            }
+        }
+    }
+
+    @Test
+    public void testCorruptGeometry() throws Throwable {
+        long[] keys = new SplittableRandom(14).longs(20_000).toArray();
+        // offsets in the file of SegmentLength, SegmentCount, SegmentCountLength, ArrayLength and Bits
+        int segmentLength = 20, segmentCount = 24, segmentCountLength = 28, arrayLength = 32, bits = 36;
+        for (XorFilter.FilterType type : new XorFilter.FilterType[] {XorFilter.FilterType.BINARY_FUSE8,
+                XorFilter.FilterType.BINARY_FUSE16_4WISE, XorFilter.FilterType.BINARY_FUSE_BITS}) {
+            try (Arena arena = Arena.ofConfined();
+                 XorFilter.XorFilterInterface filter = type.newFilter(arena)) {
+                assertTrue(filter.allocate(keys.length));
+                assertTrue(filter.populate(keys.clone()));
+                MemorySegment plain = arena.allocate(filter.serializedSize(), 8);
+                filter.serialize(plain);
+                int length = plain.get(ValueLayout.JAVA_INT_UNALIGNED, segmentLength);
+
+                List<MemorySegment> corrupted = new ArrayList<>();
+                corrupted.add(corrupt(arena, plain, segmentLength, length + 1));
+                corrupted.add(corrupt(arena, plain, segmentLength, 1 << 19));
+                corrupted.add(corrupt(arena, plain, segmentLength, length * 2));
+                corrupted.add(corrupt(arena, plain, segmentCount, plain.get(ValueLayout.JAVA_INT_UNALIGNED, segmentCount) + 1));
+                corrupted.add(corrupt(arena, plain, segmentCountLength, Integer.MAX_VALUE));
+                // shorter than the slots of the last segment, so the body is still long enough
+                corrupted.add(corrupt(arena, plain, arrayLength, plain.get(ValueLayout.JAVA_INT_UNALIGNED, segmentCountLength)));
+                if (type == XorFilter.FilterType.BINARY_FUSE_BITS) {
+                    corrupted.add(corrupt(arena, plain, bits, 0));
+                    corrupted.add(corrupt(arena, plain, bits, 33));
+                }
+                for (MemorySegment in : corrupted) {
+                    assertThrows(IllegalArgumentException.class, () -> XorFilter.view(arena, in), type.toString());
+                    assertThrows(IllegalArgumentException.class, () -> XorFilter.deserialize(arena, in), type.toString());
+                }
+                try (XorFilter.XorFilterInterface view = XorFilter.view(arena, plain)) {
+                    assertTrue(view.contains(keys[0]));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testCorruptBlockLength() throws Throwable {
+        long[] keys = new SplittableRandom(15).longs(20_000).toArray();
+        for (XorFilter.FilterType type : new XorFilter.FilterType[] {XorFilter.FilterType.XOR8, XorFilter.FilterType.XOR16}) {
+            try (Arena arena = Arena.ofConfined();
+                 XorFilter.XorFilterInterface filter = type.newFilter(arena)) {
+                assertTrue(filter.allocate(keys.length));
+                assertTrue(filter.populate(keys.clone()));
+                MemorySegment plain = arena.allocate(filter.serializedSize(), 8);
+                filter.serialize(plain);
+                long blockLength = plain.get(ValueLayout.JAVA_LONG_UNALIGNED, 16);
+                // 16 + 3 * blockLength * fingerprintBytes wraps around to a small size
+                long wrapping = Long.MIN_VALUE / 3 + blockLength;
+                for (long corrupted : new long[] {0, -1, blockLength + 1, wrapping, Long.MAX_VALUE}) {
+                    MemorySegment in = arena.allocate(plain.byteSize(), 8);
+                    in.copyFrom(plain);
+                    in.set(ValueLayout.JAVA_LONG_UNALIGNED, 16, corrupted);
+                    assertThrows(IllegalArgumentException.class, () -> XorFilter.deserialize(arena, in), type + " " + corrupted);
+                    assertThrows(IllegalArgumentException.class, () -> XorFilter.view(arena, in), type + " " + corrupted);
+                }
+            }
+        }
+    }
+
+    private static MemorySegment corrupt(Arena arena, MemorySegment plain, long offset, int value) {
+        MemorySegment copy = arena.allocate(plain.byteSize(), 8);
+        copy.copyFrom(plain);
+        copy.set(ValueLayout.JAVA_INT_UNALIGNED, offset, value);
+        return copy;
+    }
+
+    @Test
+    public void testPopulateWithoutCopy() throws Throwable {
+        long[] keys = new SplittableRandom(11).longs(30_000).toArray();
+        // duplicates force the native code to sort and deduplicate in place
+        System.arraycopy(keys, 0, keys, 15_000, 1_000);
+
+        for (XorFilter.FilterType type : XorFilter.FilterType.values()) {
+            try (Arena arena = Arena.ofConfined();
+                 XorFilter.XorFilterInterface offHeap = type.newFilter(arena);
+                 XorFilter.XorFilterInterface onHeap = type.newFilter(arena)) {
+
+                MemorySegment segment = arena.allocateFrom(ValueLayout.JAVA_LONG, keys);
+                assertTrue(offHeap.allocate(keys.length));
+                assertTrue(offHeap.populate(segment, keys.length));
+
+                long[] copy = keys.clone();
+                assertTrue(onHeap.allocate(copy.length));
+                assertTrue(onHeap.populateInPlace(copy));
+
+                for (long key : keys) {
+                    assertTrue(offHeap.contains(key));
+                    assertTrue(onHeap.contains(key));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testCallerStorage() throws Throwable {
+        // Large enough for the fingerprints of every type to span huge pages
+        long[] keys = new SplittableRandom(12).longs(2_000_000).toArray();
+        long[] queries = new SplittableRandom(13).longs(100_000).toArray();
+        System.arraycopy(keys, 0, queries, 0, 10_000);
+
+        for (XorFilter.FilterType type : XorFilter.FilterType.values()) {
+            try (Arena storage = Arena.ofConfined()) {
+                try (Arena arena = Arena.ofConfined();
+                     XorFilter.XorFilterInterface reference = type.newFilter(arena);
+                     XorFilter.XorFilterInterface filter = type.newFilter(arena)) {
+                    assertTrue(reference.allocate(keys.length));
+                    assertTrue(reference.populate(keys));
+                    assertTrue(filter.fingerprintBytes(keys.length) >= XorFilter.HUGE_PAGE_SIZE);
+                    assertTrue(filter.allocate(keys.length, storage));
+                    assertTrue(filter.populate(keys));
+                    assertEquals(reference.sizeInBytes(), filter.sizeInBytes());
+                    for (long key : keys) {
+                        assertTrue(filter.contains(key));
+                    }
+                    // Xor filters leave unassigned malloc'd slots as they were, so only binary
+                    // fuse filters, whose fingerprints start zeroed either way, answer identically
+                    if (type != XorFilter.FilterType.XOR8 && type != XorFilter.FilterType.XOR16) {
+                        for (long query : queries) {
+                            assertEquals(reference.contains(query), filter.contains(query), type.toString());
+                        }
+                    }
+
+                    assertThrows(IllegalArgumentException.class,
+                        () -> filter.allocate(100, MemorySegment.ofArray(new long[1024])));
+                    assertThrows(IndexOutOfBoundsException.class,
+                        () -> filter.allocate(100, storage.allocate(filter.fingerprintBytes(100) - 2, 8)));
+                }
+                // The filter is closed; its fingerprints go with the storage arena
+            }
+        }
+    }
+
+    @Test
+    public void testFingerprintMemory() throws Throwable {
+        try (Arena arena = Arena.ofConfined()) {
+            XorFilter.FingerprintMemory small = XorFilter.allocateFingerprintMemory(arena, 1000);
+            assertEquals(1000, small.segment().byteSize());
+            assertFalse(small.hugePages());
+
+            XorFilter.FingerprintMemory large = XorFilter.allocateFingerprintMemory(arena, 3 * XorFilter.HUGE_PAGE_SIZE);
+            assertEquals(0, large.segment().address() % XorFilter.HUGE_PAGE_SIZE);
+            Path mode = Path.of("/sys/kernel/mm/transparent_hugepage/enabled");
+            if (!Files.isReadable(mode) || Files.readString(mode).contains("[never]")) {
+                assertFalse(large.hugePages());
+            }
+        }
+    }
+
+    @Test
+    public void testPopulateModes() throws Throwable {
+        long[] keys = new SplittableRandom(3).longs(300_000).toArray();
+        System.arraycopy(keys, 0, keys, 200_000, 100); // duplicates
+
+        for (XorFilter.PopulateMode mode : XorFilter.PopulateMode.values()) {
+            try (Arena arena = Arena.ofConfined();
+                 XorFilter.Xor8Filter xor8 = new XorFilter.Xor8Filter(arena);
+                 XorFilter.Xor16Filter xor16 = new XorFilter.Xor16Filter(arena)) {
+                xor8.setPopulateMode(mode);
+                xor16.setPopulateMode(mode);
+                assertTrue(xor8.allocate(keys.length));
+                assertTrue(xor8.populate(keys));
+                assertTrue(xor16.allocate(keys.length));
+                assertTrue(xor16.populate(keys));
+                for (long key : keys) {
+                    assertTrue(xor8.contains(key), mode.toString());
+                    assertTrue(xor16.contains(key), mode.toString());
+                }
+            }
+        }
+    }
 }